@@ -0,0 +1,312 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.g2d.TextureRegion;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.NumberUtils;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/*
+ * Batch specialized for tile quads. A vertex is 8 bytes instead of SpriteBatch's 20: two shorts for the quad corner
+ * in tile units and four unsigned bytes for the tileSet index and the corner. Color, tile size, layer origin and the
+ * 16 tileSet regions are uniforms, so UVs and world positions are resolved in the vertex shader.
+ * Fragment shaders written for SpriteBatch (e.g. the overlay shader) are reused by pairing their source with
+ * VERTEX_SHADER, which provides the same v_color, v_texCoords and v_worldPosition varyings.
+ * Quad corners are packed into floats for the Mesh, so tile coordinates must stay below 32640.
+ */
+public class TileBatch implements Disposable {
+
+    public static final String VERTEX_SHADER = ""
+        + "attribute vec2 a_position;\n"
+        + "attribute vec4 a_tile;\n"
+        + "uniform mat4 u_projTrans;\n"
+        + "uniform vec2 u_origin;\n"
+        + "uniform vec2 u_tileSize;\n"
+        + "uniform vec4 u_regions[16];\n"
+        + "uniform vec4 u_color;\n"
+        + "varying vec4 v_color;\n"
+        + "varying vec2 v_texCoords;\n"
+        + "varying vec2 v_worldPosition;\n"
+        + "\n"
+        + "void main() {\n"
+        + "    vec4 region = u_regions[int(a_tile.x)];\n"
+        + "    v_color = u_color;\n"
+        + "    v_texCoords = vec2(mix(region.x, region.z, a_tile.y), mix(region.w, region.y, a_tile.z));\n"
+        + "    v_worldPosition = u_origin + a_position * u_tileSize;\n"
+        + "    gl_Position = u_projTrans * vec4(v_worldPosition, 0.0, 1.0);\n"
+        + "}\n";
+
+    public static final String FRAGMENT_SHADER = ""
+        + "#ifdef GL_ES\n"
+        + "    #define LOWP lowp\n"
+        + "    precision mediump float;\n"
+        + "#else\n"
+        + "    #define LOWP\n"
+        + "#endif\n"
+        + "varying LOWP vec4 v_color;\n"
+        + "varying vec2 v_texCoords;\n"
+        + "uniform sampler2D u_texture;\n"
+        + "\n"
+        + "void main() {\n"
+        + "    gl_FragColor = v_color * texture2D(u_texture, v_texCoords);\n"
+        + "}\n";
+
+    private static final int VERTEX_SIZE = 2;
+    static final int QUAD_SIZE = 4 * VERTEX_SIZE;
+    /* Keeps the packed tile float a normal number; the shader ignores this byte. */
+    private static final int TILE_PAD = 0x3F << 24;
+
+    private final Mesh mesh;
+    private final float[] vertices;
+    private int idx;
+
+    private final ShaderProgram shader;
+    private final ObjectMap<ShaderProgram, ShaderProgram> derivedShaders;
+    private ShaderProgram customShader;
+
+    private final Matrix4 projectionMatrix;
+    private final Color color;
+    private final float[] regions;
+    private final float[] vec;
+
+    private TileLayer tileLayer;
+    private boolean drawing;
+
+    public int renderCalls;
+    public int totalRenderCalls;
+    public int maxQuadsInBatch;
+
+    public TileBatch() {
+        this(1000);
+    }
+
+    public TileBatch(int size) {
+        if (size > 8191)
+            throw new IllegalArgumentException("Can't have more than 8191 quads per batch: " + size);
+
+        final Mesh.VertexDataType vertexDataType = (Gdx.gl30 != null) ? Mesh.VertexDataType.VertexBufferObjectWithVAO : Mesh.VertexDataType.VertexArray;
+        mesh = new Mesh(vertexDataType, false, size * 4, size * 6,
+            new VertexAttribute(VertexAttributes.Usage.Position, 2, GL20.GL_SHORT, false, "a_position"),
+            new VertexAttribute(VertexAttributes.Usage.Generic, 4, GL20.GL_UNSIGNED_BYTE, false, "a_tile")
+        );
+
+        vertices = new float[size * QUAD_SIZE];
+
+        final short[] indices = new short[size * 6];
+        short j = 0;
+        for (int i = 0; i < indices.length; i += 6, j += 4) {
+            indices[i] = j;
+            indices[i + 1] = (short) (j + 1);
+            indices[i + 2] = (short) (j + 2);
+            indices[i + 3] = (short) (j + 2);
+            indices[i + 4] = (short) (j + 3);
+            indices[i + 5] = j;
+        }
+        mesh.setIndices(indices);
+
+        shader = new ShaderProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        if (!shader.isCompiled())
+            throw new IllegalArgumentException("Error compiling shader: " + shader.getLog());
+        derivedShaders = new ObjectMap<>();
+
+        projectionMatrix = new Matrix4();
+        color = new Color(Color.WHITE);
+        regions = new float[16 * 4];
+        vec = new float[4];
+    }
+
+    public void setProjectionMatrix(Matrix4 projection) {
+        if (drawing)
+            flush();
+        projectionMatrix.set(projection);
+        if (drawing)
+            getActiveShader().setUniformMatrix("u_projTrans", projectionMatrix);
+    }
+
+    public Matrix4 getProjectionMatrix() {
+        return projectionMatrix;
+    }
+
+    public void setColor(Color color) {
+        setColor(color.r, color.g, color.b, color.a);
+    }
+
+    public void setColor(float r, float g, float b, float a) {
+        if (color.r == r && color.g == g && color.b == b && color.a == a)
+            return;
+        if (drawing)
+            flush();
+        color.set(r, g, b, a);
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    /* Uses a SpriteBatch shader's fragment stage with VERTEX_SHADER; null restores the default shader. */
+    public void setShader(ShaderProgram shader) {
+        final ShaderProgram derived = (shader == null) ? null : derive(shader);
+        if (derived == customShader)
+            return;
+        if (drawing)
+            flush();
+        customShader = derived;
+        if (drawing) {
+            getActiveShader().bind();
+            getActiveShader().setUniformMatrix("u_projTrans", projectionMatrix);
+            getActiveShader().setUniformi("u_texture", 0);
+        }
+    }
+
+    /* The program actually bound, which is derived from the one given to setShader. */
+    public ShaderProgram getActiveShader() {
+        return (customShader != null) ? customShader : shader;
+    }
+
+    private ShaderProgram derive(final ShaderProgram source) {
+        ShaderProgram derived = derivedShaders.get(source);
+        if (derived != null)
+            return derived;
+        String vertexShader = VERTEX_SHADER;
+        final String fragmentShader = source.getFragmentShaderSource();
+        if (fragmentShader.startsWith("#version"))
+            vertexShader = fragmentShader.substring(0, fragmentShader.indexOf('\n') + 1) + vertexShader;
+        derived = new ShaderProgram(vertexShader, fragmentShader);
+        if (!derived.isCompiled())
+            throw new IllegalArgumentException("Error compiling tile shader: " + derived.getLog());
+        derivedShaders.put(source, derived);
+        return derived;
+    }
+
+    /* Quads drawn next belong to this layer; switching layers flushes. */
+    public void setTileLayer(TileLayer tileLayer) {
+        if (this.tileLayer == tileLayer)
+            return;
+        if (drawing)
+            flush();
+        this.tileLayer = tileLayer;
+    }
+
+    public TileLayer getTileLayer() {
+        return tileLayer;
+    }
+
+    public boolean isDrawing() {
+        return drawing;
+    }
+
+    public void begin() {
+        if (drawing)
+            throw new IllegalStateException("TileBatch.end must be called before begin.");
+        renderCalls = 0;
+        Gdx.gl.glDepthMask(false);
+        getActiveShader().bind();
+        getActiveShader().setUniformMatrix("u_projTrans", projectionMatrix);
+        getActiveShader().setUniformi("u_texture", 0);
+        drawing = true;
+    }
+
+    public void end() {
+        if (!drawing)
+            throw new IllegalStateException("TileBatch.begin must be called before end.");
+        if (idx > 0)
+            flush();
+        drawing = false;
+        Gdx.gl.glDepthMask(true);
+    }
+
+    /* Draws tileSet region index at quad (x, y) of the current layer. */
+    public void draw(final int x, final int y, final int index) {
+        if (idx == vertices.length)
+            flush();
+        idx = putQuad(vertices, idx, x, y, index);
+    }
+
+    /* Draws quads of the current layer already packed by putQuad, e.g. by TileGeometry; length is in floats. */
+    public void draw(final float[] quads, int offset, int length) {
+        while (length > 0) {
+            if (idx == vertices.length)
+                flush();
+            final int copy = Math.min(length, vertices.length - idx);
+            System.arraycopy(quads, offset, vertices, idx, copy);
+            idx += copy;
+            offset += copy;
+            length -= copy;
+        }
+    }
+
+    /* Writes the QUAD_SIZE floats of quad (x, y) with tileSet region index at vertices[i] and returns the next index. */
+    static int putQuad(final float[] vertices, int i, final int x, final int y, final int index) {
+        final float bottom = NumberUtils.intBitsToFloat(y << 16 | x);
+        final float top = NumberUtils.intBitsToFloat((y + 1) << 16 | x);
+        final float bottomRight = NumberUtils.intBitsToFloat(y << 16 | (x + 1));
+        final float topRight = NumberUtils.intBitsToFloat((y + 1) << 16 | (x + 1));
+        final int tile = TILE_PAD | index;
+        vertices[i++] = bottom;
+        vertices[i++] = NumberUtils.intBitsToFloat(tile);
+        vertices[i++] = top;
+        vertices[i++] = NumberUtils.intBitsToFloat(tile | 1 << 16);
+        vertices[i++] = topRight;
+        vertices[i++] = NumberUtils.intBitsToFloat(tile | 1 << 8 | 1 << 16);
+        vertices[i++] = bottomRight;
+        vertices[i++] = NumberUtils.intBitsToFloat(tile | 1 << 8);
+        return i;
+    }
+
+    public void flush() {
+        if (idx == 0 || tileLayer == null) {
+            idx = 0;
+            return;
+        }
+
+        renderCalls++;
+        totalRenderCalls++;
+        final int quads = idx / QUAD_SIZE;
+        if (quads > maxQuadsInBatch)
+            maxQuadsInBatch = quads;
+
+        final ShaderProgram shader = getActiveShader();
+        final float unitScale = tileLayer.getUnitScale();
+        for (int i = 0; i < 16; i++) {
+            final TextureRegion region = tileLayer.getTileRegion(i);
+            regions[i * 4] = region.getU();
+            regions[i * 4 + 1] = region.getV();
+            regions[i * 4 + 2] = region.getU2();
+            regions[i * 4 + 3] = region.getV2();
+        }
+        shader.setUniform4fv("u_regions", regions, 0, regions.length);
+        shader.setUniformf("u_origin", tileLayer.getOffsetX() * unitScale, tileLayer.getOffsetY() * unitScale);
+        shader.setUniformf("u_tileSize", tileLayer.getTileWidth() * unitScale, tileLayer.getTileHeight() * unitScale);
+        vec[0] = color.r;
+        vec[1] = color.g;
+        vec[2] = color.b;
+        vec[3] = color.a;
+        shader.setUniform4fv("u_color", vec, 0, 4);
+
+        tileLayer.getTileSetTexture().bind(0);
+        mesh.setVertices(vertices, 0, idx);
+
+        Gdx.gl.glEnable(GL20.GL_BLEND);
+        Gdx.gl.glBlendFunc(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA);
+        mesh.render(shader, GL20.GL_TRIANGLES, 0, quads * 6);
+
+        idx = 0;
+    }
+
+    @Override
+    public void dispose() {
+        mesh.dispose();
+        shader.dispose();
+        for (final ShaderProgram derived : derivedShaders.values())
+            derived.dispose();
+        derivedShaders.clear();
+    }
+
+}
@@ -0,0 +1,316 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntIntMap;
+
+/*
+ * Marching-squares outlines of the filled regions of a TileLayer, split into chunks of chunkSize x chunkSize quads.
+ * The cells are the same quads the autotile indices are computed for, sampled at tile centers, so the outlines follow
+ * the rendered shapes. Outlines run counter-clockwise around filled tiles and collinear points are merged.
+ * Each chunk holds closed loops and open chains; open chains end on the chunk border where the neighboring chunk's
+ * chain continues, so they map directly onto Box2D ChainShape.createLoop / createChain.
+ * Only chunks touched by edits are re-extracted on update().
+ */
+public class TileContours implements TileLayerModel.ChangeListener {
+
+    private final TileLayerModel tileLayer;
+    private final int chunkSize;
+    private final int chunksX;
+    private final int chunksY;
+
+    private final Chunk[] chunks;
+    private final boolean[] dirty;
+    private final IntArray dirtyChunks;
+    private final IntArray updatedChunks;
+
+    /* Scratch state for extracting one chunk; segments are directed, between doubled-grid points. */
+    private final IntArray segmentStarts;
+    private final IntArray segmentEnds;
+    private final IntIntMap segmentsByStart;
+    private final IntIntMap segmentsByEnd;
+    private final IntArray points;
+    private boolean[] used;
+
+    public TileContours(TileLayerModel tileLayer) {
+        this(tileLayer, 32);
+    }
+
+    public TileContours(TileLayerModel tileLayer, int chunkSize) {
+        this.tileLayer = tileLayer;
+        this.chunkSize = chunkSize;
+
+        /* There's one more column and row of quads than tiles, so outlines touching the top and right borders close. */
+        chunksX = (tileLayer.getTilesX() + chunkSize) / chunkSize;
+        chunksY = (tileLayer.getTilesY() + chunkSize) / chunkSize;
+
+        chunks = new Chunk[chunksX * chunksY];
+        for (int i = 0; i < chunks.length; i++)
+            chunks[i] = new Chunk(i % chunksX, i / chunksX);
+        dirty = new boolean[chunks.length];
+        dirtyChunks = new IntArray(false, chunks.length);
+        updatedChunks = new IntArray(false, 16);
+
+        segmentStarts = new IntArray();
+        segmentEnds = new IntArray();
+        segmentsByStart = new IntIntMap();
+        segmentsByEnd = new IntIntMap();
+        points = new IntArray();
+        used = new boolean[0];
+
+        invalidateAll();
+        tileLayer.addChangeListener(this);
+    }
+
+    public TileLayerModel getTileLayer() {
+        return tileLayer;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunksX() {
+        return chunksX;
+    }
+
+    public int getChunksY() {
+        return chunksY;
+    }
+
+    public Chunk getChunk(int chunkX, int chunkY) {
+        return chunks[chunkY * chunksX + chunkX];
+    }
+
+    /* Chunk indices (chunkX + chunkY * chunksX) re-extracted by the last update(). */
+    public IntArray getUpdatedChunks() {
+        return updatedChunks;
+    }
+
+    public void dispose() {
+        tileLayer.removeChangeListener(this);
+    }
+
+    @Override
+    public void tilesChanged(TileLayerModel tileLayer, int x1, int y1, int x2, int y2) {
+        invalidate(x1, y1, x2 + 1, y2 + 1);
+    }
+
+    /* Call this after changing the layer's unitScale, the outlines are stored in world units. */
+    public void invalidateAll() {
+        invalidate(0, 0, tileLayer.getTilesX(), tileLayer.getTilesY());
+    }
+
+    /* Marks the chunks covering the inclusive quad rectangle for re-extraction. */
+    public void invalidate(int x1, int y1, int x2, int y2) {
+        final int cx1 = Math.max(0, x1 / chunkSize);
+        final int cy1 = Math.max(0, y1 / chunkSize);
+        final int cx2 = Math.min(chunksX - 1, x2 / chunkSize);
+        final int cy2 = Math.min(chunksY - 1, y2 / chunkSize);
+        for (int cy = cy1; cy <= cy2; cy++)
+            for (int cx = cx1; cx <= cx2; cx++) {
+                final int chunk = cy * chunksX + cx;
+                if (!dirty[chunk]) {
+                    dirty[chunk] = true;
+                    dirtyChunks.add(chunk);
+                }
+            }
+    }
+
+    /* Re-extracts the dirty chunks and returns how many there were; see getUpdatedChunks(). */
+    public int update() {
+        updatedChunks.clear();
+        for (int i = 0; i < dirtyChunks.size; i++) {
+            final int chunk = dirtyChunks.get(i);
+            dirty[chunk] = false;
+            extract(chunks[chunk]);
+            updatedChunks.add(chunk);
+        }
+        dirtyChunks.clear();
+        return updatedChunks.size;
+    }
+
+    private void extract(final Chunk chunk) {
+        chunk.clear();
+        segmentStarts.clear();
+        segmentEnds.clear();
+        segmentsByStart.clear();
+        segmentsByEnd.clear();
+
+        final int qx1 = chunk.chunkX * chunkSize;
+        final int qy1 = chunk.chunkY * chunkSize;
+        final int qx2 = Math.min(tileLayer.getTilesX() + 1, qx1 + chunkSize);
+        final int qy2 = Math.min(tileLayer.getTilesY() + 1, qy1 + chunkSize);
+        for (int qy = qy1; qy < qy2; qy++)
+            for (int qx = qx1; qx < qx2; qx++)
+                march(qx, qy);
+
+        final int count = segmentStarts.size;
+        if (used.length < count)
+            used = new boolean[Math.max(count, used.length << 1)];
+        for (int i = 0; i < count; i++)
+            used[i] = false;
+
+        /* Open chains first, they start where no segment of this chunk ends. */
+        for (int i = 0; i < count; i++)
+            if (!used[i] && !segmentsByEnd.containsKey(segmentStarts.get(i)))
+                trace(chunk, i, false);
+        for (int i = 0; i < count; i++)
+            if (!used[i])
+                trace(chunk, i, true);
+    }
+
+    /*
+     * Corners of quad (qx, qy) are the centers of tiles (qx - 1, qy - 1) to (qx, qy). Walking the quad boundary
+     * counter-clockwise, each crossing from a filled to an empty corner is joined to the crossing before it, which
+     * keeps the filled corners on the left. Points are edge midpoints on a grid doubled from tile space.
+     */
+    private void march(final int qx, final int qy) {
+        final boolean bottomLeft = tileLayer.tileAt(qx - 1, qy - 1);
+        final boolean bottomRight = tileLayer.tileAt(qx, qy - 1);
+        final boolean topRight = tileLayer.tileAt(qx, qy);
+        final boolean topLeft = tileLayer.tileAt(qx - 1, qy);
+        if (bottomLeft == bottomRight && bottomRight == topRight && topRight == topLeft)
+            return;
+
+        final int bottom = point(2 * qx, 2 * qy - 1);
+        final int right = point(2 * qx + 1, 2 * qy);
+        final int top = point(2 * qx, 2 * qy + 1);
+        final int left = point(2 * qx - 1, 2 * qy);
+
+        if (bottomLeft && !bottomRight)
+            segment(bottom, previous(left, top, right, topLeft, topRight, bottomRight));
+        if (bottomRight && !topRight)
+            segment(right, previous(bottom, left, top, bottomLeft, topLeft, topRight));
+        if (topRight && !topLeft)
+            segment(top, previous(right, bottom, left, bottomRight, bottomLeft, topLeft));
+        if (topLeft && !bottomLeft)
+            segment(left, previous(top, right, bottom, topRight, bottomRight, bottomLeft));
+    }
+
+    /* The crossing before an exit, walking clockwise over the three remaining edges and the corners that close them. */
+    private static int previous(final int first, final int second, final int third, final boolean firstCorner, final boolean secondCorner, final boolean thirdCorner) {
+        if (!firstCorner)
+            return first;
+        if (!secondCorner)
+            return second;
+        return third;
+    }
+
+    private static int point(final int x, final int y) {
+        return (x + 1) << 16 | (y + 1);
+    }
+
+    private void segment(final int start, final int end) {
+        final int index = segmentStarts.size;
+        segmentStarts.add(start);
+        segmentEnds.add(end);
+        segmentsByStart.put(start, index);
+        segmentsByEnd.put(end, index);
+    }
+
+    private void trace(final Chunk chunk, final int first, final boolean loop) {
+        points.clear();
+        int segment = first;
+        points.add(segmentStarts.get(segment));
+        while (segment != -1 && !used[segment]) {
+            used[segment] = true;
+            final int end = segmentEnds.get(segment);
+            if (loop && segment != first && end == segmentStarts.get(first))
+                break;
+            addPoint(end);
+            segment = segmentsByStart.get(end, -1);
+        }
+        if (loop) {
+            if (points.size > 1 && points.peek() == points.first())
+                points.pop();
+            while (points.size > 2 && collinear(points.get(points.size - 2), points.peek(), points.first()))
+                points.pop();
+            while (points.size > 2 && collinear(points.peek(), points.first(), points.get(1)))
+                points.removeIndex(0);
+        }
+        chunk.addChain(tileLayer, points, loop);
+    }
+
+    private void addPoint(final int point) {
+        if (points.size >= 2 && collinear(points.get(points.size - 2), points.peek(), point))
+            points.pop();
+        points.add(point);
+    }
+
+    private static boolean collinear(final int a, final int b, final int c) {
+        final int abX = (b >>> 16) - (a >>> 16);
+        final int abY = (b & 0xFFFF) - (a & 0xFFFF);
+        final int bcX = (c >>> 16) - (b >>> 16);
+        final int bcY = (c & 0xFFFF) - (b & 0xFFFF);
+        return abX * bcY - abY * bcX == 0 && abX * bcX + abY * bcY > 0;
+    }
+
+    public static class Chunk {
+
+        public final int chunkX;
+        public final int chunkY;
+
+        private final FloatArray vertices;
+        /* Per chain: vertex offset into vertices, in floats, and the loop flag. */
+        private final IntArray offsets;
+        private final IntArray loops;
+
+        Chunk(int chunkX, int chunkY) {
+            this.chunkX = chunkX;
+            this.chunkY = chunkY;
+            vertices = new FloatArray();
+            offsets = new IntArray();
+            loops = new IntArray();
+        }
+
+        void clear() {
+            vertices.clear();
+            offsets.clear();
+            loops.clear();
+        }
+
+        void addChain(final TileLayerModel tileLayer, final IntArray points, final boolean loop) {
+            if (points.size < 2)
+                return;
+            final float originX = tileLayer.tileToWorldX(0);
+            final float originY = tileLayer.tileToWorldY(0);
+            final float halfWidth = tileLayer.getTileWidth() * tileLayer.getUnitScale() / 2f;
+            final float halfHeight = tileLayer.getTileHeight() * tileLayer.getUnitScale() / 2f;
+            offsets.add(vertices.size);
+            loops.add(loop ? 1 : 0);
+            for (int i = 0; i < points.size; i++) {
+                final int point = points.get(i);
+                vertices.add(
+                    originX + ((point >>> 16) - 1) * halfWidth,
+                    originY + ((point & 0xFFFF) - 1) * halfHeight
+                );
+            }
+        }
+
+        public int getChainCount() {
+            return offsets.size;
+        }
+
+        /* All chains of the chunk, packed as (x, y) world positions. */
+        public float[] getVertices() {
+            return vertices.items;
+        }
+
+        public int getChainOffset(int chain) {
+            return offsets.get(chain);
+        }
+
+        /* Length of the chain in floats, as taken by ChainShape.createLoop / createChain. */
+        public int getChainLength(int chain) {
+            final int end = (chain + 1 < offsets.size) ? offsets.get(chain + 1) : vertices.size;
+            return end - offsets.get(chain);
+        }
+
+        public boolean isLoop(int chain) {
+            return loops.get(chain) != 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,264 @@
+package me.nulldoubt.advancedtilemaps;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Hands tile edits from any number of threads (simulation, AI, network) to the thread that owns the layer, usually
+ * the GL thread, which applies them with drain() once per frame. Edits are packed into one int each, x << 16 | y << 1
+ * | state, so layers may be at most 32768 tiles on each side.
+ * Producers never lock: they claim a slot in the current buffer with one atomic increment, write the record and
+ * count it as committed. drain() swaps in the other buffer, seals the old one and waits for the few producers still
+ * between claim and commit. When the current buffer is full, edit() rejects the edit and returns false; rejections,
+ * the buffer's load and the peak number of edits per drain are the back-pressure metrics.
+ * drain() applies the last edit of every cell in claim order (one thread's edits keep their order), goes chunk by
+ * chunk through the bulk path, and skips edits that don't change the tile. Only AtomicInteger, AtomicLong and
+ * AtomicReference are used, so the queue compiles for GWT and TeaVM, where it is simply single threaded.
+ */
+public class TileEditQueue {
+
+    /* Added to a buffer's claim counter to seal it; claims past this retry on the current buffer. */
+    private static final int SEALED = 1 << 30;
+    private static final int MAX_TILES = 1 << 15;
+    /* Digit width of the radix sort, three passes cover a 30 bit key. */
+    private static final int RADIX_BITS = 10;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private final TileLayerModel tileLayer;
+    private final int capacity;
+    private final int chunksX;
+
+    private final AtomicReference<Buffer> current;
+    private Buffer spare;
+    private final AtomicLong rejected;
+
+    /*
+     * Records of one drain sorted by chunk << 10 | cell within the chunk, which fits an int for 32768 x 32768 tiles.
+     * The radix sort is stable, so records of a cell stay in claim order; plain ints also keep it cheap on GWT.
+     */
+    private final int[] sorted;
+    private final int[] scratch;
+    private final int[] keys;
+    private final int[] counts;
+    /* Last edits of their cell that set a tile to the state it already has. */
+    private final boolean[] noops;
+    private final boolean[] cells;
+
+    private long drained;
+    private long coalesced;
+    private long applied;
+    private int lastDrained;
+    private int peak;
+
+    public TileEditQueue(TileLayerModel tileLayer, int capacity) {
+        if (tileLayer.getTilesX() > MAX_TILES || tileLayer.getTilesY() > MAX_TILES)
+            throw new IllegalArgumentException("TileEditQueue supports layers up to " + MAX_TILES + " tiles on each side.");
+        if (capacity <= 0 || capacity >= SEALED / 2)
+            throw new IllegalArgumentException("capacity must be positive and below " + (SEALED / 2) + ": " + capacity);
+        this.tileLayer = tileLayer;
+        this.capacity = capacity;
+        chunksX = tileLayer.getStorage().getChunksX();
+
+        current = new AtomicReference<>(new Buffer(capacity));
+        spare = new Buffer(capacity);
+        spare.claimed.set(SEALED);
+        rejected = new AtomicLong();
+
+        sorted = new int[capacity];
+        scratch = new int[capacity];
+        keys = new int[capacity];
+        counts = new int[RADIX + 1];
+        noops = new boolean[capacity];
+        cells = new boolean[TileStorage.CHUNK_SIZE * TileStorage.CHUNK_SIZE];
+    }
+
+    public TileLayerModel getTileLayer() {
+        return tileLayer;
+    }
+
+    /* Edits one buffer holds, i.e. the most drain() applies at once. */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /*
+     * Queues setting tile (x, y) to state; safe from any thread. Returns false if the queue is full and the edit was
+     * dropped, in which case the producer should back off until the next frame. Out of bounds edits are ignored.
+     */
+    public boolean edit(final int x, final int y, final boolean state) {
+        if (tileLayer.isOutOfBounds(x, y))
+            return true;
+        final int record = x << 16 | y << 1 | (state ? 1 : 0);
+        while (true) {
+            final Buffer buffer = current.get();
+            final int slot = buffer.claimed.getAndIncrement();
+            if (slot < capacity) {
+                buffer.records[slot] = record;
+                buffer.committed.incrementAndGet();
+                return true;
+            }
+            if (slot < SEALED) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            /* The buffer was swapped out under us, or the new one isn't reset yet. */
+        }
+    }
+
+    /* Edits waiting for the next drain. */
+    public int getPending() {
+        final int claimed = current.get().claimed.get();
+        return (claimed >= SEALED) ? 0 : Math.min(claimed, capacity);
+    }
+
+    /* Fill of the current buffer from 0 to 1; producers can throttle well before edits get rejected. */
+    public float getLoad() {
+        return (float) getPending() / capacity;
+    }
+
+    /* Edits dropped because the queue was full, since creation. */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /* Edits taken out of the queue by drain(), since creation. */
+    public long getDrained() {
+        return drained;
+    }
+
+    /* Drained edits that were overridden by a later edit of the same cell in the same drain. */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /* Drained edits that changed a tile; the rest were coalesced or set a tile to the state it already had. */
+    public long getApplied() {
+        return applied;
+    }
+
+    public int getLastDrained() {
+        return lastDrained;
+    }
+
+    /* Most edits a single drain took, a capacity close to this means producers are about to be rejected. */
+    public int getPeak() {
+        return peak;
+    }
+
+    /* Applies every queued edit to the layer and notifies its listeners; returns how many tiles changed. */
+    public int drain() {
+        final Buffer buffer = current.get();
+        /* The spare is still sealed, so producers that see it spin until it is reset right after. */
+        current.set(spare);
+        spare.committed.set(0);
+        spare.claimed.set(0);
+        spare = buffer;
+
+        final int count = Math.min(buffer.claimed.getAndAdd(SEALED), capacity);
+        while (buffer.committed.get() < count) {
+            /* Only producers between claim and commit, a few instructions; never loops without threads. */
+        }
+
+        /* records -> sorted -> scratch -> sorted */
+        sort(buffer.records, sorted, count, 0);
+        sort(sorted, scratch, count, RADIX_BITS);
+        sort(scratch, sorted, count, 2 * RADIX_BITS);
+        for (int i = 0; i < count; i++)
+            keys[i] = keyOf(sorted[i]);
+
+        int changed = 0;
+        for (int start = 0, end; start < count; start = end) {
+            end = start + 1;
+            while (end < count && (keys[end] >>> 10) == (keys[start] >>> 10))
+                end++;
+            changed += applyChunk(keys[start] >>> 10, start, end);
+        }
+
+        lastDrained = count;
+        peak = Math.max(peak, count);
+        drained += count;
+        applied += changed;
+        return changed;
+    }
+
+    /* One stable counting sort pass over the key digit at shift. */
+    private void sort(final int[] from, final int[] to, final int count, final int shift) {
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < count; i++)
+            counts[((keyOf(from[i]) >>> shift) & (RADIX - 1)) + 1]++;
+        for (int i = 1; i < RADIX; i++)
+            counts[i] += counts[i - 1];
+        for (int i = 0; i < count; i++)
+            to[counts[(keyOf(from[i]) >>> shift) & (RADIX - 1)]++] = from[i];
+    }
+
+    private int keyOf(final int record) {
+        final int x = record >>> 16;
+        final int y = (record >>> 1) & 0x7FFF;
+        return ((y >> 5) * chunksX + (x >> 5)) << 10 | (y & 31) << 5 | (x & 31);
+    }
+
+    /* Writes the last edit of every cell among sorted[start, end), all in one chunk, through the bulk path. */
+    private int applyChunk(final int chunk, final int start, final int end) {
+        final int chunkX = (chunk % chunksX) << 5;
+        final int chunkY = (chunk / chunksX) << 5;
+        final TileStorage storage = tileLayer.getStorage();
+
+        int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE, x2 = -1, y2 = -1;
+        for (int i = start; i < end; i++) {
+            noops[i] = false;
+            if (i + 1 < end && keys[i + 1] == keys[i]) {
+                coalesced++;
+                continue;
+            }
+            final int x = chunkX + (keys[i] & 31);
+            final int y = chunkY + ((keys[i] >> 5) & 31);
+            if (storage.get(x, y) == ((sorted[i] & 1) != 0)) {
+                noops[i] = true;
+                continue;
+            }
+            x1 = Math.min(x1, x);
+            y1 = Math.min(y1, y);
+            x2 = Math.max(x2, x);
+            y2 = Math.max(y2, y);
+        }
+        if (x2 < 0)
+            return 0;
+
+        final int width = x2 - x1 + 1;
+        final int height = y2 - y1 + 1;
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                cells[y * width + x] = storage.get(x1 + x, y1 + y);
+        int changed = 0;
+        for (int i = start; i < end; i++) {
+            if (noops[i] || (i + 1 < end && keys[i + 1] == keys[i]))
+                continue;
+            final int x = chunkX + (keys[i] & 31);
+            final int y = chunkY + ((keys[i] >> 5) & 31);
+            cells[(y - y1) * width + x - x1] = (sorted[i] & 1) != 0;
+            changed++;
+        }
+        tileLayer.writeTiles(x1, y1, width, height, cells);
+        tileLayer.rebuildIndices(x1, y1, x2 + 1, y2 + 1);
+        tileLayer.notifyChanged(x1, y1, x2, y2);
+        return changed;
+    }
+
+    private static final class Buffer {
+
+        private final int[] records;
+        private final AtomicInteger claimed;
+        private final AtomicInteger committed;
+
+        private Buffer(int capacity) {
+            records = new int[capacity];
+            claimed = new AtomicInteger();
+            committed = new AtomicInteger();
+        }
+
+    }
+
+}
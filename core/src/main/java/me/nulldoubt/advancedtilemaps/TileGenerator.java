@@ -0,0 +1,217 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.TimeUtils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Fills a TileLayer's occupancy from a generator function, chunk by chunk, writing straight into the layer through
+ * writeTiles. Once every chunk is generated each chunk's indices are rebuilt exactly once, and listeners are
+ * notified a single time for the whole layer when update() observes the end.
+ * On desktop, start(executor, workers) runs both passes on worker threads while update() only polls; without an
+ * executor (GWT, TeaVM) update(budget) does the work itself in time-sliced steps. Either way progress and completion
+ * are reported from update(), on the calling thread.
+ */
+public class TileGenerator {
+
+    private final TileLayerModel tileLayer;
+    private final ChunkFunction function;
+    private final int chunkSize;
+    private final int chunksX;
+    private final int chunkCount;
+
+    private final AtomicInteger nextGenerate;
+    private final AtomicInteger generated;
+    private final AtomicInteger nextIndex;
+    private final AtomicInteger indexed;
+    private final AtomicReference<Throwable> failure;
+
+    private Listener listener;
+    private Executor executor;
+    private int workers;
+    private boolean[] scratch;
+    private boolean finished;
+
+    public TileGenerator(TileLayerModel tileLayer, CellFunction function) {
+        this(tileLayer, 64, function);
+    }
+
+    public TileGenerator(TileLayerModel tileLayer, int chunkSize, final CellFunction function) {
+        this(tileLayer, chunkSize, new ChunkFunction() {
+            @Override
+            public void generate(int x1, int y1, int width, int height, boolean[] cells) {
+                for (int y = 0; y < height; y++)
+                    for (int x = 0; x < width; x++)
+                        cells[y * width + x] = function.generate(x1 + x, y1 + y);
+            }
+        });
+    }
+
+    /* Chunks must be a multiple of 32 tiles so that parallel chunks never share a storage chunk. */
+    public TileGenerator(TileLayerModel tileLayer, int chunkSize, ChunkFunction function) {
+        if (chunkSize <= 0 || (chunkSize & 31) != 0)
+            throw new IllegalArgumentException("chunkSize must be a positive multiple of 32: " + chunkSize);
+        this.tileLayer = tileLayer;
+        this.function = function;
+        this.chunkSize = chunkSize;
+
+        chunksX = (tileLayer.getTilesX() + chunkSize - 1) / chunkSize;
+        chunkCount = chunksX * ((tileLayer.getTilesY() + chunkSize - 1) / chunkSize);
+
+        nextGenerate = new AtomicInteger();
+        generated = new AtomicInteger();
+        nextIndex = new AtomicInteger();
+        indexed = new AtomicInteger();
+        failure = new AtomicReference<>();
+    }
+
+    public TileLayerModel getTileLayer() {
+        return tileLayer;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /* Fraction of the work done, generation and index rebuilding weighted equally. */
+    public float getProgress() {
+        if (chunkCount == 0)
+            return 1f;
+        return (generated.get() + indexed.get()) / (2f * chunkCount);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /* Runs both passes on the executor with the given number of workers; poll update() until it returns true. */
+    public void start(Executor executor, int workers) {
+        if (this.executor != null)
+            throw new IllegalStateException("TileGenerator was already started.");
+        this.executor = executor;
+        this.workers = Math.max(1, workers);
+        for (int i = 0; i < this.workers; i++)
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    generateChunks();
+                }
+            });
+    }
+
+    /*
+     * Reports progress and returns true once done. Without an executor this also does the work, for at most
+     * budgetSeconds (at least one chunk per call).
+     */
+    public boolean update(float budgetSeconds) {
+        if (finished)
+            return true;
+
+        final Throwable throwable = failure.get();
+        if (throwable != null)
+            throw new GdxRuntimeException("Tile generation failed.", throwable);
+
+        if (executor == null) {
+            if (scratch == null)
+                scratch = new boolean[chunkSize * chunkSize];
+            final long deadline = TimeUtils.nanoTime() + (long) (budgetSeconds * 1000000000L);
+            do {
+                if (generated.get() < chunkCount)
+                    generate(nextGenerate.getAndIncrement(), scratch);
+                else if (indexed.get() < chunkCount)
+                    index(nextIndex.getAndIncrement());
+                else
+                    break;
+            } while (TimeUtils.nanoTime() < deadline);
+        }
+
+        if (listener != null)
+            listener.progress(this, getProgress());
+
+        if (indexed.get() < chunkCount)
+            return false;
+
+        finished = true;
+        scratch = null;
+        tileLayer.notifyChanged(0, 0, tileLayer.getTilesX() - 1, tileLayer.getTilesY() - 1);
+        if (listener != null)
+            listener.finished(this);
+        return true;
+    }
+
+    private void generateChunks() {
+        try {
+            final boolean[] cells = new boolean[chunkSize * chunkSize];
+            int chunk;
+            while ((chunk = nextGenerate.getAndIncrement()) < chunkCount) {
+                if (generate(chunk, cells) == chunkCount)
+                    for (int i = 0; i < workers; i++)
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                indexChunks();
+                            }
+                        });
+            }
+        } catch (Throwable throwable) {
+            failure.compareAndSet(null, throwable);
+        }
+    }
+
+    private void indexChunks() {
+        try {
+            int chunk;
+            while ((chunk = nextIndex.getAndIncrement()) < chunkCount)
+                index(chunk);
+        } catch (Throwable throwable) {
+            failure.compareAndSet(null, throwable);
+        }
+    }
+
+    /* Returns how many chunks are generated after this one. */
+    private int generate(final int chunk, final boolean[] cells) {
+        final int x1 = (chunk % chunksX) * chunkSize;
+        final int y1 = (chunk / chunksX) * chunkSize;
+        final int width = Math.min(chunkSize, tileLayer.getTilesX() - x1);
+        final int height = Math.min(chunkSize, tileLayer.getTilesY() - y1);
+        function.generate(x1, y1, width, height, cells);
+        tileLayer.writeTiles(x1, y1, width, height, cells);
+        return generated.incrementAndGet();
+    }
+
+    private void index(final int chunk) {
+        final int x1 = (chunk % chunksX) * chunkSize;
+        final int y1 = (chunk / chunksX) * chunkSize;
+        tileLayer.rebuildIndices(x1, y1, x1 + chunkSize - 1, y1 + chunkSize - 1);
+        indexed.incrementAndGet();
+    }
+
+    public interface CellFunction {
+
+        boolean generate(int x, int y);
+
+    }
+
+    public interface ChunkFunction {
+
+        /* Writes the states of the width x height block at (x1, y1) into cells, row-major. */
+        void generate(int x1, int y1, int width, int height, boolean[] cells);
+
+    }
+
+    public interface Listener {
+
+        void progress(TileGenerator generator, float progress);
+
+        void finished(TileGenerator generator);
+
+    }
+
+}
@@ -0,0 +1,253 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.badlogic.gdx.graphics.g2d.Batch;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Render strategy that builds the TileBatch quads of many layers up front. build() splits the view of every added
+ * layer into the visible storage chunks and packs each chunk's quads into its own, fixed range of the layer's vertex
+ * array; render() then only copies those ranges into the batch. On desktop setExecutor() spreads the chunks over
+ * worker threads, with the calling thread taking chunks too; without an executor (GWT, TeaVM) build() does them all
+ * itself. The output doesn't depend on the number of workers: every chunk has its own range and render() submits
+ * them in layer order, then chunk order.
+ * Draws what VIEW_TILES_VIEW_QUADS draws. Call build() on the GL thread once per frame, after setView() of every
+ * layer and before rendering them; layers must not be edited in between. A SpriteBatch can't take the packed
+ * quads, so render(TileLayer, Batch) and layers that weren't added fall back to VIEW_TILES_VIEW_QUADS.
+ */
+public class TileGeometry implements TileLayer.RenderStrategy {
+
+    /* Claims at or past this are from workers of an earlier build() that started late, they stop right away. */
+    private static final int CLOSED = 1 << 30;
+    private static final TileLayer.RenderStrategy fallback = TileLayer.IntegratedStrategy.VIEW_TILES_VIEW_QUADS;
+
+    private final Array<TileLayer> tileLayers;
+
+    /* Per layer: visible tile range [col1, col2) x [row1, row2), first visible chunk, chunks per row and first item. */
+    private int[] cols1, cols2, rows1, rows2;
+    private int[] chunksX1, chunksY1, chunksWide;
+    private int[] firstItems;
+    private float[][] vertices;
+
+    /* Per item, i.e. visible chunk of a layer: offset into the layer's vertices, quads and filled tiles written. */
+    private int[] offsets;
+    private int[] quads;
+    private int[] tiles;
+    private int items;
+    private boolean built;
+
+    private Executor executor;
+    private int workers;
+    private final Runnable task;
+    private final AtomicInteger nextItem;
+    private final AtomicInteger doneItems;
+    private final AtomicReference<Throwable> failure;
+
+    public TileGeometry() {
+        tileLayers = new Array<>();
+        cols1 = new int[0];
+        cols2 = new int[0];
+        rows1 = new int[0];
+        rows2 = new int[0];
+        chunksX1 = new int[0];
+        chunksY1 = new int[0];
+        chunksWide = new int[0];
+        firstItems = new int[1];
+        vertices = new float[0][];
+
+        offsets = new int[64];
+        quads = new int[64];
+        tiles = new int[64];
+
+        task = new Runnable() {
+            @Override
+            public void run() {
+                buildItems();
+            }
+        };
+        nextItem = new AtomicInteger(CLOSED);
+        doneItems = new AtomicInteger();
+        failure = new AtomicReference<>();
+    }
+
+    /* Builds on the executor with up to workers threads in total, counting the one calling build(); null builds serially. */
+    public void setExecutor(Executor executor, int workers) {
+        this.executor = executor;
+        this.workers = Math.max(1, workers);
+    }
+
+    public void addTileLayer(TileLayer tileLayer) {
+        if (tileLayers.contains(tileLayer, true))
+            return;
+        tileLayers.add(tileLayer);
+        final int size = tileLayers.size;
+        cols1 = Arrays.copyOf(cols1, size);
+        cols2 = Arrays.copyOf(cols2, size);
+        rows1 = Arrays.copyOf(rows1, size);
+        rows2 = Arrays.copyOf(rows2, size);
+        chunksX1 = Arrays.copyOf(chunksX1, size);
+        chunksY1 = Arrays.copyOf(chunksY1, size);
+        chunksWide = Arrays.copyOf(chunksWide, size);
+        firstItems = new int[size + 1];
+        vertices = Arrays.copyOf(vertices, size);
+        vertices[size - 1] = new float[0];
+        built = false;
+    }
+
+    public void removeTileLayer(TileLayer tileLayer) {
+        final int index = tileLayers.indexOf(tileLayer, true);
+        if (index < 0)
+            return;
+        tileLayers.removeIndex(index);
+        System.arraycopy(vertices, index + 1, vertices, index, tileLayers.size - index);
+        vertices = Arrays.copyOf(vertices, tileLayers.size);
+        firstItems = new int[tileLayers.size + 1];
+        built = false;
+    }
+
+    public Array<TileLayer> getTileLayers() {
+        return tileLayers;
+    }
+
+    /* Builds the quads of every added layer for its current view bounds. */
+    public void build() {
+        built = false;
+        items = 0;
+        for (int layer = 0; layer < tileLayers.size; layer++) {
+            final TileLayer tileLayer = tileLayers.get(layer);
+            firstItems[layer] = items;
+
+            /* Same range as IntegratedStrategy with view tiles. */
+            final Rectangle viewBounds = tileLayer.getViewBounds();
+            final float tileWidth = tileLayer.getTileWidth() * tileLayer.getUnitScale();
+            final float tileHeight = tileLayer.getTileHeight() * tileLayer.getUnitScale();
+            final int col1 = Math.max(0, (int) ((viewBounds.x - tileLayer.getOffsetX()) / (tileWidth)));
+            final int col2 = Math.min(tileLayer.getTilesX(), (int) ((viewBounds.x + viewBounds.width) / (tileWidth)) + 1);
+            final int row1 = Math.max(0, (int) ((viewBounds.y - tileLayer.getOffsetY()) / (tileHeight)));
+            final int row2 = Math.min(tileLayer.getTilesY(), (int) ((viewBounds.y + viewBounds.height) / (tileHeight)) + 1);
+            cols1[layer] = col1;
+            cols2[layer] = col2;
+            rows1[layer] = row1;
+            rows2[layer] = row2;
+            if (col1 >= col2 || row1 >= row2)
+                continue;
+
+            final int chunkX1 = col1 / TileStorage.CHUNK_SIZE;
+            final int chunkY1 = row1 / TileStorage.CHUNK_SIZE;
+            final int wide = (col2 - 1) / TileStorage.CHUNK_SIZE - chunkX1 + 1;
+            final int high = (row2 - 1) / TileStorage.CHUNK_SIZE - chunkY1 + 1;
+            chunksX1[layer] = chunkX1;
+            chunksY1[layer] = chunkY1;
+            chunksWide[layer] = wide;
+            ensureItems(items + wide * high);
+
+            int offset = 0;
+            for (int chunkY = chunkY1; chunkY < chunkY1 + high; chunkY++)
+                for (int chunkX = chunkX1; chunkX < chunkX1 + wide; chunkX++) {
+                    final int width = Math.min(col2, (chunkX + 1) * TileStorage.CHUNK_SIZE) - Math.max(col1, chunkX * TileStorage.CHUNK_SIZE);
+                    final int height = Math.min(row2, (chunkY + 1) * TileStorage.CHUNK_SIZE) - Math.max(row1, chunkY * TileStorage.CHUNK_SIZE);
+                    offsets[items++] = offset;
+                    offset += width * height * TileBatch.QUAD_SIZE;
+                }
+            if (vertices[layer].length < offset)
+                vertices[layer] = new float[offset + offset / 4];
+        }
+        firstItems[tileLayers.size] = items;
+
+        failure.set(null);
+        doneItems.set(0);
+        nextItem.set(0);
+        if (executor != null)
+            for (int i = 1; i < Math.min(workers, items); i++)
+                executor.execute(task);
+        buildItems();
+        while (doneItems.get() < items && failure.get() == null) {
+            /* Workers finishing their last chunk; never loops without an executor. */
+        }
+        nextItem.set(CLOSED);
+
+        final Throwable throwable = failure.get();
+        if (throwable != null)
+            throw new GdxRuntimeException("Building tile geometry failed.", throwable);
+        built = true;
+    }
+
+    private void ensureItems(final int count) {
+        if (offsets.length >= count)
+            return;
+        final int size = Math.max(count, offsets.length * 2);
+        offsets = Arrays.copyOf(offsets, size);
+        quads = Arrays.copyOf(quads, size);
+        tiles = Arrays.copyOf(tiles, size);
+    }
+
+    private void buildItems() {
+        try {
+            int item;
+            while ((item = nextItem.getAndIncrement()) < items) {
+                buildItem(item);
+                doneItems.incrementAndGet();
+            }
+        } catch (Throwable throwable) {
+            failure.compareAndSet(null, throwable);
+        }
+    }
+
+    private void buildItem(final int item) {
+        int layer = 0;
+        while (firstItems[layer + 1] <= item)
+            layer++;
+        final TileStorage storage = tileLayers.get(layer).getStorage();
+        final int chunk = item - firstItems[layer];
+        final int chunkX = chunksX1[layer] + chunk % chunksWide[layer];
+        final int chunkY = chunksY1[layer] + chunk / chunksWide[layer];
+        final int x1 = Math.max(cols1[layer], chunkX * TileStorage.CHUNK_SIZE);
+        final int x2 = Math.min(cols2[layer], (chunkX + 1) * TileStorage.CHUNK_SIZE);
+        final int y1 = Math.max(rows1[layer], chunkY * TileStorage.CHUNK_SIZE);
+        final int y2 = Math.min(rows2[layer], (chunkY + 1) * TileStorage.CHUNK_SIZE);
+
+        final float[] vertices = this.vertices[layer];
+        final byte zeroIndex = TileLayerModel.zeroIndex;
+        int i = offsets[item];
+        int filled = 0;
+        for (int y = y1; y < y2; y++)
+            for (int x = x1; x < x2; x++) {
+                if (storage.get(x, y))
+                    filled++;
+                final byte index = storage.getIndex(x, y);
+                if (index != zeroIndex)
+                    i = TileBatch.putQuad(vertices, i, x, y, index);
+            }
+        quads[item] = (i - offsets[item]) / TileBatch.QUAD_SIZE;
+        tiles[item] = filled;
+    }
+
+    @Override
+    public void render(TileLayer tileLayer, Batch batch) {
+        fallback.render(tileLayer, batch);
+    }
+
+    @Override
+    public void render(TileLayer tileLayer, TileBatch batch) {
+        final int layer = tileLayers.indexOf(tileLayer, true);
+        if (layer < 0 || !built) {
+            fallback.render(tileLayer, batch);
+            return;
+        }
+        tileLayer.tilesRendered = 0;
+        tileLayer.quadsRendered = 0;
+        final float[] vertices = this.vertices[layer];
+        for (int item = firstItems[layer]; item < firstItems[layer + 1]; item++) {
+            tileLayer.tilesRendered += tiles[item];
+            tileLayer.quadsRendered += quads[item];
+            batch.draw(vertices, offsets[item], quads[item] * TileBatch.QUAD_SIZE);
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.Batch;
+import com.badlogic.gdx.graphics.glutils.FrameBuffer;
+import com.badlogic.gdx.graphics.glutils.HdpiUtils;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.ScreenUtils;
+import com.badlogic.gdx.utils.viewport.Viewport;
+
+/*
+ * Renders a stack of layers into a FrameBuffer slightly larger than the view and redraws only that texture while the
+ * camera stays inside the margin. The stack is re-rendered when the view leaves the cached area or changes size,
+ * when an edit touches the cached area, or when a layer's tile set, overlay, unit scale or strategy changes.
+ * Call invalidate() for anything else, e.g. an animated overlay texture.
+ */
+public class TileLayerCache implements TileLayerModel.ChangeListener, Disposable {
+
+    private final Array<TileLayer> tileLayers;
+    /* Per layer state the cached image depends on, compared on every render. */
+    private final Array<Object> appearance;
+    private final FloatArray scales;
+
+    private final Rectangle viewBounds;
+    private final Rectangle cacheBounds;
+    private final Matrix4 projection;
+    private final Matrix4 previousProjection;
+
+    private FrameBuffer frameBuffer;
+    private float margin;
+    private boolean dirty;
+    private int renders;
+
+    public TileLayerCache() {
+        this(0.25f);
+    }
+
+    /* The cached area extends the view by margin times its size on every side. */
+    public TileLayerCache(float margin) {
+        this.margin = margin;
+        tileLayers = new Array<>();
+        appearance = new Array<>();
+        scales = new FloatArray();
+        viewBounds = new Rectangle();
+        cacheBounds = new Rectangle();
+        projection = new Matrix4();
+        previousProjection = new Matrix4();
+        dirty = true;
+    }
+
+    public void addTileLayer(TileLayer tileLayer) {
+        tileLayers.add(tileLayer);
+        appearance.setSize(tileLayers.size * 4);
+        scales.setSize(tileLayers.size * 2);
+        tileLayer.addChangeListener(this);
+        dirty = true;
+    }
+
+    public void removeTileLayer(TileLayer tileLayer) {
+        if (!tileLayers.removeValue(tileLayer, true))
+            return;
+        appearance.setSize(tileLayers.size * 4);
+        scales.setSize(tileLayers.size * 2);
+        tileLayer.removeChangeListener(this);
+        dirty = true;
+    }
+
+    public Array<TileLayer> getTileLayers() {
+        return tileLayers;
+    }
+
+    public float getMargin() {
+        return margin;
+    }
+
+    public void setMargin(float margin) {
+        this.margin = margin;
+        dirty = true;
+    }
+
+    /* How many times the stack was rendered into the frame buffer. */
+    public int getRenders() {
+        return renders;
+    }
+
+    public Texture getTexture() {
+        return frameBuffer == null ? null : frameBuffer.getColorBufferTexture();
+    }
+
+    public void invalidate() {
+        dirty = true;
+    }
+
+    @Override
+    public void tilesChanged(TileLayerModel tileLayer, int x1, int y1, int x2, int y2) {
+        if (dirty)
+            return;
+        /* Index quads reach one tile below and above the edited tiles. */
+        final float worldX1 = tileLayer.tileToWorldX(x1 - 1);
+        final float worldY1 = tileLayer.tileToWorldY(y1 - 1);
+        final float worldX2 = tileLayer.tileToWorldX(x2 + 2);
+        final float worldY2 = tileLayer.tileToWorldY(y2 + 2);
+        if (worldX1 < cacheBounds.x + cacheBounds.width && worldX2 > cacheBounds.x && worldY1 < cacheBounds.y + cacheBounds.height && worldY2 > cacheBounds.y)
+            dirty = true;
+    }
+
+    /* Draws the stack for the viewport's camera, re-rendering the cache first if needed; the batch may be drawing or not. */
+    public void render(final Batch batch, final Viewport viewport) {
+        final OrthographicCamera camera = (OrthographicCamera) viewport.getCamera();
+        final float width = camera.viewportWidth * camera.zoom;
+        final float height = camera.viewportHeight * camera.zoom;
+        final float w = width * Math.abs(camera.up.y) + height * Math.abs(camera.up.x);
+        final float h = height * Math.abs(camera.up.y) + width * Math.abs(camera.up.x);
+        viewBounds.set(camera.position.x - w / 2, camera.position.y - h / 2, w, h);
+
+        if (isStale())
+            rebuild(batch, viewport);
+
+        final boolean drawing = batch.isDrawing();
+        if (!drawing)
+            batch.begin();
+        final int srcFunc = batch.getBlendSrcFunc();
+        final int dstFunc = batch.getBlendDstFunc();
+        final int srcFuncAlpha = batch.getBlendSrcFuncAlpha();
+        final int dstFuncAlpha = batch.getBlendDstFuncAlpha();
+        /* The frame buffer holds premultiplied color. */
+        batch.setBlendFunction(GL20.GL_ONE, GL20.GL_ONE_MINUS_SRC_ALPHA);
+        batch.draw(frameBuffer.getColorBufferTexture(), cacheBounds.x, cacheBounds.y, cacheBounds.width, cacheBounds.height, 0f, 0f, 1f, 1f);
+        batch.setBlendFunctionSeparate(srcFunc, dstFunc, srcFuncAlpha, dstFuncAlpha);
+        if (!drawing)
+            batch.end();
+    }
+
+    private boolean isStale() {
+        boolean stale = dirty || frameBuffer == null;
+        stale |= (viewBounds.x < cacheBounds.x || viewBounds.y < cacheBounds.y);
+        stale |= (viewBounds.x + viewBounds.width > cacheBounds.x + cacheBounds.width);
+        stale |= (viewBounds.y + viewBounds.height > cacheBounds.y + cacheBounds.height);
+        stale |= !approximately(viewBounds.width * (1f + 2f * margin), cacheBounds.width);
+        stale |= !approximately(viewBounds.height * (1f + 2f * margin), cacheBounds.height);
+        for (int i = 0; i < tileLayers.size; i++) {
+            final TileLayer tileLayer = tileLayers.get(i);
+            stale |= changed(i * 4, tileLayer.getTileSetTexture());
+            stale |= changed(i * 4 + 1, tileLayer.getOverlayTexture());
+            stale |= changed(i * 4 + 2, tileLayer.getOverlayShaderProgram());
+            stale |= changed(i * 4 + 3, tileLayer.getRenderStrategy());
+            stale |= changed(i * 2, tileLayer.getOverlayScale());
+            stale |= changed(i * 2 + 1, tileLayer.getUnitScale());
+        }
+        return stale;
+    }
+
+    private boolean changed(final int index, final Object value) {
+        if (appearance.get(index) == value)
+            return false;
+        appearance.set(index, value);
+        return true;
+    }
+
+    private boolean changed(final int index, final float value) {
+        if (scales.get(index) == value)
+            return false;
+        scales.set(index, value);
+        return true;
+    }
+
+    private static boolean approximately(final float a, final float b) {
+        return Math.abs(a - b) <= Math.max(Math.abs(a), Math.abs(b)) * 0.0001f;
+    }
+
+    private void rebuild(final Batch batch, final Viewport viewport) {
+        dirty = false;
+        renders++;
+
+        final float marginX = viewBounds.width * margin;
+        final float marginY = viewBounds.height * margin;
+        cacheBounds.set(viewBounds.x - marginX, viewBounds.y - marginY, viewBounds.width + 2f * marginX, viewBounds.height + 2f * marginY);
+
+        final int pixelsX = HdpiUtils.toBackBufferX(viewport.getScreenWidth());
+        final int pixelsY = HdpiUtils.toBackBufferY(viewport.getScreenHeight());
+        final int bufferWidth = Math.max(1, Math.round(pixelsX * (1f + 2f * margin)));
+        final int bufferHeight = Math.max(1, Math.round(pixelsY * (1f + 2f * margin)));
+        if (frameBuffer == null || frameBuffer.getWidth() != bufferWidth || frameBuffer.getHeight() != bufferHeight) {
+            if (frameBuffer != null)
+                frameBuffer.dispose();
+            frameBuffer = new FrameBuffer(Pixmap.Format.RGBA8888, bufferWidth, bufferHeight, false);
+            frameBuffer.getColorBufferTexture().setFilter(Texture.TextureFilter.Nearest, Texture.TextureFilter.Nearest);
+        }
+
+        final boolean drawing = batch.isDrawing();
+        if (drawing)
+            batch.end();
+        previousProjection.set(batch.getProjectionMatrix());
+        final ShaderProgram shader = batch.getShader();
+        final float packedColor = batch.getPackedColor();
+        final int srcFunc = batch.getBlendSrcFunc();
+        final int dstFunc = batch.getBlendDstFunc();
+        final int srcFuncAlpha = batch.getBlendSrcFuncAlpha();
+        final int dstFuncAlpha = batch.getBlendDstFuncAlpha();
+
+        frameBuffer.begin();
+        ScreenUtils.clear(Color.CLEAR);
+        projection.setToOrtho2D(cacheBounds.x, cacheBounds.y, cacheBounds.width, cacheBounds.height);
+        batch.setProjectionMatrix(projection);
+        batch.setBlendFunctionSeparate(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA, GL20.GL_ONE, GL20.GL_ONE_MINUS_SRC_ALPHA);
+        batch.setColor(Color.WHITE);
+        batch.begin();
+        for (int i = 0; i < tileLayers.size; i++) {
+            final TileLayer tileLayer = tileLayers.get(i);
+            tileLayer.setView(cacheBounds.x, cacheBounds.y, cacheBounds.width, cacheBounds.height);
+            tileLayer.render(batch);
+        }
+        batch.end();
+        frameBuffer.end();
+        viewport.apply();
+
+        batch.setProjectionMatrix(previousProjection);
+        batch.setShader(shader);
+        batch.setPackedColor(packedColor);
+        batch.setBlendFunctionSeparate(srcFunc, dstFunc, srcFuncAlpha, dstFuncAlpha);
+        if (drawing)
+            batch.begin();
+    }
+
+    @Override
+    public void dispose() {
+        for (final TileLayer tileLayer : tileLayers)
+            tileLayer.removeChangeListener(this);
+        tileLayers.clear();
+        if (frameBuffer != null)
+            frameBuffer.dispose();
+        frameBuffer = null;
+    }
+
+}
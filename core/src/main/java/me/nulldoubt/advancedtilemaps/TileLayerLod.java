@@ -0,0 +1,238 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.Batch;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.IntArray;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Render strategy that swaps the per-tile quads for a single downsampled texture when zoomed out.
+ * Every texel covers blockSize x blockSize tiles, with the layer color and the filled fraction of the block as alpha.
+ * Above threshold tiles per pixel the texture is faded in over blendRange (a fraction of the threshold),
+ * drawn on top of the detail strategy, which is dropped once the texture is fully opaque.
+ * Edits only recompute the touched texels and upload the touched rows, on the next render.
+ */
+public class TileLayerLod implements TileLayer.RenderStrategy, TileLayerModel.ChangeListener, Disposable {
+
+    private final TileLayer tileLayer;
+    private final TileLayer.RenderStrategy detailStrategy;
+    private final int blockSize;
+
+    private final Pixmap pixmap;
+    private final Texture texture;
+    private final Color color;
+
+    private float threshold;
+    private float blendRange;
+    private int screenWidth;
+
+    private final boolean[] dirty;
+    private final IntArray dirtyBlocks;
+
+    public TileLayerLod(TileLayer tileLayer, int blockSize, Color color) {
+        this(tileLayer, tileLayer.getRenderStrategy(), blockSize, color);
+    }
+
+    public TileLayerLod(TileLayer tileLayer, TileLayer.RenderStrategy detailStrategy, int blockSize, Color color) {
+        this.tileLayer = tileLayer;
+        this.detailStrategy = detailStrategy;
+        this.blockSize = blockSize;
+        this.color = new Color(color);
+
+        pixmap = new Pixmap(
+            (tileLayer.getTilesX() + blockSize - 1) / blockSize,
+            (tileLayer.getTilesY() + blockSize - 1) / blockSize,
+            Pixmap.Format.RGBA8888
+        );
+        pixmap.setBlending(Pixmap.Blending.None);
+        texture = new Texture(pixmap);
+        texture.setFilter(Texture.TextureFilter.Linear, Texture.TextureFilter.Linear);
+
+        threshold = 0.5f;
+        blendRange = 0.25f;
+
+        dirty = new boolean[pixmap.getWidth() * pixmap.getHeight()];
+        dirtyBlocks = new IntArray(false, dirty.length);
+
+        invalidate(0, 0, tileLayer.getTilesX() - 1, tileLayer.getTilesY() - 1);
+        tileLayer.addChangeListener(this);
+    }
+
+    /* Average color of a pixmap region, e.g. of the overlay texture, to use as the LOD color. */
+    public static Color averageColor(Pixmap pixmap, Color out) {
+        float r = 0f, g = 0f, b = 0f, a = 0f;
+        final Color pixel = new Color();
+        for (int y = 0; y < pixmap.getHeight(); y++)
+            for (int x = 0; x < pixmap.getWidth(); x++) {
+                Color.rgba8888ToColor(pixel, pixmap.getPixel(x, y));
+                r += pixel.r * pixel.a;
+                g += pixel.g * pixel.a;
+                b += pixel.b * pixel.a;
+                a += pixel.a;
+            }
+        if (a == 0f)
+            return out.set(0f, 0f, 0f, 0f);
+        return out.set(r / a, g / a, b / a, 1f);
+    }
+
+    public TileLayer getTileLayer() {
+        return tileLayer;
+    }
+
+    public TileLayer.RenderStrategy getDetailStrategy() {
+        return detailStrategy;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public Texture getTexture() {
+        return texture;
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public void setColor(Color color) {
+        this.color.set(color);
+        invalidate(0, 0, tileLayer.getTilesX() - 1, tileLayer.getTilesY() - 1);
+    }
+
+    public float getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    public float getBlendRange() {
+        return blendRange;
+    }
+
+    public void setBlendRange(float blendRange) {
+        this.blendRange = blendRange;
+    }
+
+    /* Width of the viewport in pixels; 0 uses the back buffer width. */
+    public void setScreenWidth(int screenWidth) {
+        this.screenWidth = screenWidth;
+    }
+
+    /* Opacity of the LOD texture for the current view bounds, 0 renders detail only and 1 the texture only. */
+    public float getBlend() {
+        final int pixels = (screenWidth > 0) ? screenWidth : Gdx.graphics.getBackBufferWidth();
+        if (pixels <= 0)
+            return 0f;
+        final float tiles = tileLayer.getViewBounds().width / (tileLayer.getTileWidth() * tileLayer.getUnitScale());
+        final float tilesPerPixel = tiles / pixels;
+        if (tilesPerPixel <= threshold)
+            return 0f;
+        if (blendRange <= 0f)
+            return 1f;
+        return MathUtils.clamp((tilesPerPixel - threshold) / (threshold * blendRange), 0f, 1f);
+    }
+
+    @Override
+    public void tilesChanged(TileLayerModel tileLayer, int x1, int y1, int x2, int y2) {
+        invalidate(x1, y1, x2, y2);
+    }
+
+    /* Marks the blocks covering the inclusive tile rectangle for recomputation. */
+    public void invalidate(int x1, int y1, int x2, int y2) {
+        final int width = pixmap.getWidth();
+        final int bx1 = Math.max(0, x1 / blockSize);
+        final int by1 = Math.max(0, y1 / blockSize);
+        final int bx2 = Math.min(width - 1, x2 / blockSize);
+        final int by2 = Math.min(pixmap.getHeight() - 1, y2 / blockSize);
+        for (int by = by1; by <= by2; by++)
+            for (int bx = bx1; bx <= bx2; bx++) {
+                final int block = by * width + bx;
+                if (!dirty[block]) {
+                    dirty[block] = true;
+                    dirtyBlocks.add(block);
+                }
+            }
+    }
+
+    /* Recomputes the dirty texels and uploads the rows they span; must be called on the GL thread. */
+    public void update() {
+        if (dirtyBlocks.size == 0)
+            return;
+        final int width = pixmap.getWidth();
+        final int tilesX = tileLayer.getTilesX();
+        final int tilesY = tileLayer.getTilesY();
+        final float area = blockSize * blockSize;
+        int row1 = Integer.MAX_VALUE;
+        int row2 = -1;
+        for (int i = 0; i < dirtyBlocks.size; i++) {
+            final int block = dirtyBlocks.get(i);
+            dirty[block] = false;
+            final int bx = block % width;
+            final int by = block / width;
+            final int x1 = bx * blockSize;
+            final int y1 = by * blockSize;
+            final int filled = TileQueries.countFilled(tileLayer, x1, y1, Math.min(tilesX, x1 + blockSize) - 1, Math.min(tilesY, y1 + blockSize) - 1, false);
+            pixmap.drawPixel(bx, by, Color.rgba8888(color.r, color.g, color.b, color.a * filled / area));
+            row1 = Math.min(row1, by);
+            row2 = Math.max(row2, by);
+        }
+        dirtyBlocks.clear();
+
+        /* Pixmap row 0 holds the bottom blocks, so the texture is drawn with v flipped. */
+        final ByteBuffer pixels = pixmap.getPixels();
+        pixels.position(row1 * width * 4);
+        texture.bind();
+        Gdx.gl.glTexSubImage2D(GL20.GL_TEXTURE_2D, 0, 0, row1, width, row2 - row1 + 1, pixmap.getGLFormat(), pixmap.getGLType(), pixels);
+        pixels.position(0);
+    }
+
+    @Override
+    public void render(TileLayer tileLayer, Batch batch) {
+        final float blend = getBlend();
+        if (blend < 1f)
+            detailStrategy.render(tileLayer, batch);
+        if (blend <= 0f)
+            return;
+
+        update();
+
+        if (tileLayer.hasOverlay())
+            batch.setShader(null);
+        final float packedColor = batch.getPackedColor();
+        batch.setColor(1f, 1f, 1f, blend);
+        batch.draw(texture,
+            tileLayer.tileToWorldX(0),
+            tileLayer.tileToWorldY(0),
+            pixmap.getWidth() * blockSize * tileLayer.getTileWidth() * tileLayer.getUnitScale(),
+            pixmap.getHeight() * blockSize * tileLayer.getTileHeight() * tileLayer.getUnitScale(),
+            0f, 0f, 1f, 1f
+        );
+        batch.setPackedColor(packedColor);
+        if (tileLayer.hasOverlay())
+            batch.setShader(tileLayer.getOverlayShaderProgram());
+    }
+
+    /* A TileBatch can't draw or blend the LOD texture, so this always renders the detail strategy. */
+    @Override
+    public void render(TileLayer tileLayer, TileBatch batch) {
+        detailStrategy.render(tileLayer, batch);
+    }
+
+    @Override
+    public void dispose() {
+        tileLayer.removeChangeListener(this);
+        texture.dispose();
+        pixmap.dispose();
+    }
+
+}
@@ -0,0 +1,349 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.math.GridPoint2;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.JsonValue;
+import com.badlogic.gdx.utils.UBJsonReader;
+import com.badlogic.gdx.utils.UBJsonWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * The state of a tile layer without anything to render it: occupancy, autotile indices, tile geometry and change
+ * listeners. Only needs libGDX's utility classes, so it runs in a plain JVM (e.g. a game server) without a backend
+ * or GL context. TileLayer extends it with the tile set, overlay and render strategies.
+ * TileQueries, TilePathfinder, TileContours, TileGenerator and TileLayerSaver all work on the model.
+ */
+public class TileLayerModel {
+
+    private static final IntMap<Byte> configuration;
+    private static final byte[] lookup;
+    private static final GridPoint2[] neighbors;
+
+    static byte zeroIndex;
+
+    static {
+        configuration = new IntMap<>(16);
+        configuration.put(0b1111, (byte) 6);
+        configuration.put(0b0001, (byte) 13);
+        configuration.put(0b0010, (byte) 0);
+        configuration.put(0b0100, (byte) 8);
+        configuration.put(0b1000, (byte) 15);
+        configuration.put(0b0101, (byte) 1);
+        configuration.put(0b1010, (byte) 11);
+        configuration.put(0b0011, (byte) 3);
+        configuration.put(0b1100, (byte) 9);
+        configuration.put(0b0111, (byte) 5);
+        configuration.put(0b1011, (byte) 2);
+        configuration.put(0b1101, (byte) 10);
+        configuration.put(0b1110, (byte) 7);
+        configuration.put(0b0110, (byte) 14);
+        configuration.put(0b1001, (byte) 4);
+        configuration.put(0b0000, zeroIndex = (byte) 12);
+
+        lookup = new byte[16];
+        updateLookup();
+
+        neighbors = new GridPoint2[]{
+            new GridPoint2(0, 0), new GridPoint2(1, 0),
+            new GridPoint2(0, 1), new GridPoint2(1, 1)
+        };
+    }
+
+    public static void setAutoTileConfiguration(IntMap<Byte> configuration) {
+        TileLayerModel.configuration.clear(16);
+        TileLayerModel.configuration.putAll(configuration);
+        zeroIndex = TileLayerModel.configuration.get(0b0000);
+        updateLookup();
+    }
+
+    private static void updateLookup() {
+        for (int bitmask = 0; bitmask < 16; bitmask++)
+            lookup[bitmask] = configuration.get(bitmask, zeroIndex);
+    }
+
+    /* Serialization methods; files written by TileLayer.write read fine here, the render settings are ignored. */
+    public static TileLayerModel read(FileHandle fileHandle) {
+        return read(fileHandle.read());
+    }
+
+    public static TileLayerModel read(InputStream inputStream) {
+        final JsonValue root = parse(inputStream);
+        final TileLayerModel model = new TileLayerModel(
+            root.getInt("tilesX"),
+            root.getInt("tilesY"),
+            root.getInt("tileWidth"),
+            root.getInt("tileHeight"),
+            root.getFloat("unitScale"),
+            false
+        );
+        readTiles(model, root);
+        return model;
+    }
+
+    public static boolean write(TileLayerModel model, FileHandle fileHandle) {
+        return write(model, fileHandle.write(false));
+    }
+
+    public static boolean write(TileLayerModel model, OutputStream outputStream) {
+        try (final UBJsonWriter writer = new UBJsonWriter(outputStream)) {
+            writer.object();
+            writeFields(model, writer);
+            writer
+                .set("tiles", _compress(model.storage, model.tilesX, model.tilesY))
+                .pop()
+                .flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static JsonValue parse(InputStream inputStream) {
+        final UBJsonReader reader = new UBJsonReader();
+        reader.oldFormat = false;
+        return reader.parse(inputStream);
+    }
+
+    static void readTiles(TileLayerModel model, JsonValue root) {
+        final boolean[] tiles = _decompress(root.get("tiles").asByteArray(), model.tilesX, model.tilesY);
+        model.writeTiles(0, 0, model.tilesX, model.tilesY, tiles);
+        model.rebuildIndices(0, 0, model.tilesX - 1, model.tilesY - 1);
+        model.saveSequence = root.getInt("sequence", 0);
+    }
+
+    static void writeFields(TileLayerModel model, UBJsonWriter writer) throws IOException {
+        writer
+            .set("tilesX", model.tilesX)
+            .set("tilesY", model.tilesY)
+            .set("tileWidth", model.tileWidth)
+            .set("tileHeight", model.tileHeight)
+            .set("unitScale", model.unitScale);
+    }
+
+    static byte[] _compress(TileStorage storage, int tilesX, int tilesY) {
+        int totalBits = tilesX * tilesY;
+        int totalBytes = (totalBits + 7) / 8;
+        byte[] bytes = new byte[totalBytes];
+
+        int bitIndex = 0;
+        for (int y = 0; y < tilesY; y++) {
+            for (int x = 0; x < tilesX; x++) {
+                if (storage.get(x, y))
+                    bytes[bitIndex / 8] |= (byte) (1 << (bitIndex % 8));
+                bitIndex++;
+            }
+        }
+        return bytes;
+    }
+
+    private static boolean[] _decompress(byte[] bytes, int tilesX, int tilesY) {
+        boolean[] tiles = new boolean[tilesX * tilesY];
+
+        int bitIndex = 0;
+        for (int y = 0; y < tilesY; y++) {
+            for (int x = 0; x < tilesX; x++) {
+                tiles[bitIndex] = (bytes[bitIndex / 8] & (1 << (bitIndex % 8))) != 0;
+                bitIndex++;
+            }
+        }
+        return tiles;
+    }
+
+    private final int tilesX;
+    private final int tilesY;
+
+    private final float tileWidth;
+    private final float tileHeight;
+
+    private final float offsetX;
+    private final float offsetY;
+
+    private float unitScale;
+
+    private final TileStorage storage;
+    /* Sequence of the last TileLayerSaver file written from or applied to this layer, 0 if none. */
+    private int saveSequence;
+
+    private final Array<ChangeListener> changeListeners;
+
+    public TileLayerModel(int tilesX, int tilesY, float tileWidth, float tileHeight, float unitScale, boolean fill) {
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.unitScale = unitScale;
+
+        offsetX = tileWidth / 2f;
+        offsetY = tileHeight / 2f;
+
+        storage = new TileStorage(tilesX, tilesY);
+        changeListeners = new Array<>(false, 4, ChangeListener.class);
+
+        fill(fill);
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public float getTileWidth() {
+        return tileWidth;
+    }
+
+    public float getTileHeight() {
+        return tileHeight;
+    }
+
+    public float getOffsetX() {
+        return offsetX;
+    }
+
+    public float getOffsetY() {
+        return offsetY;
+    }
+
+    public TileStorage getStorage() {
+        return storage;
+    }
+
+    /* Incremental saves apply only on top of the save with this sequence, see TileLayerSaver.apply. */
+    public int getSaveSequence() {
+        return saveSequence;
+    }
+
+    void setSaveSequence(int saveSequence) {
+        this.saveSequence = saveSequence;
+    }
+
+    public int getWordsPerRow() {
+        return storage.getWordsPerRow();
+    }
+
+    /* Returns 32 tiles of row y starting at x = wordX * 32, bit i being tile (wordX * 32 + i, y). */
+    public int occupancyWord(final int wordX, final int y) {
+        return storage.getWord(wordX, y);
+    }
+
+    /* World position of the lower left corner of tile x, the same space the render strategies draw in. */
+    public float tileToWorldX(final int x) {
+        return (offsetX + (x + 0.5f) * tileWidth) * unitScale;
+    }
+
+    public float tileToWorldY(final int y) {
+        return (offsetY + (y + 0.5f) * tileHeight) * unitScale;
+    }
+
+    /* Fractional tile coordinate of a world position; floor it to get the tile index. */
+    public float worldToTileX(final float worldX) {
+        return (worldX / unitScale - offsetX) / tileWidth - 0.5f;
+    }
+
+    public float worldToTileY(final float worldY) {
+        return (worldY / unitScale - offsetY) / tileHeight - 0.5f;
+    }
+
+    public float getUnitScale() {
+        return unitScale;
+    }
+
+    public void setUnitScale(float unitScale) {
+        this.unitScale = unitScale;
+    }
+
+    public void addChangeListener(ChangeListener changeListener) {
+        if (!changeListeners.contains(changeListener, true))
+            changeListeners.add(changeListener);
+    }
+
+    public void removeChangeListener(ChangeListener changeListener) {
+        changeListeners.removeValue(changeListener, true);
+    }
+
+    /* Notifies the listeners that the occupancy of the inclusive tile rectangle may have changed. */
+    public void notifyChanged(final int x1, final int y1, final int x2, final int y2) {
+        final ChangeListener[] listeners = changeListeners.items;
+        for (int i = 0, n = changeListeners.size; i < n; i++)
+            listeners[i].tilesChanged(this, x1, y1, x2, y2);
+    }
+
+    public void fill(boolean state) {
+        storage.fill(state, configuration.get(state ? 0b1111 : 0b0000));
+        notifyChanged(0, 0, tilesX - 1, tilesY - 1);
+    }
+
+    public boolean isOutOfBounds(final int x, final int y) {
+        return (x < 0 || y < 0 || x >= tilesX || y >= tilesY);
+    }
+
+    public boolean tileAt(final int x, final int y) {
+        if (isOutOfBounds(x, y))
+            return false;
+        return storage.get(x, y);
+    }
+
+    public void tileAt(final int x, final int y, final boolean state) {
+        /* No-op edits must not write: after a snapshot that would copy the chunk and put it in the next incremental save. */
+        if (isOutOfBounds(x, y) || storage.get(x, y) == state)
+            return;
+        storage.set(x, y, state);
+        for (final GridPoint2 neighbor : neighbors) {
+            final int nX = x + neighbor.x;
+            final int nY = y + neighbor.y;
+            if (isOutOfBounds(nX, nY))
+                continue;
+
+            int bitmask = 0;
+            bitmask |= tileAt(nX - neighbors[1].x, nY - neighbors[1].y) ? (1 << 3) : 0;
+            bitmask |= tileAt(nX - neighbors[0].x, nY - neighbors[0].y) ? (1 << 2) : 0;
+            bitmask |= tileAt(nX - neighbors[3].x, nY - neighbors[3].y) ? (1 << 1) : 0;
+            bitmask |= tileAt(nX - neighbors[2].x, nY - neighbors[2].y) ? (1) : 0;
+            storage.setIndex(nX, nY, configuration.get(bitmask));
+        }
+        notifyChanged(x, y, x, y);
+    }
+
+    /*
+     * Bulk path: writes a row-major width x height block of states without touching indices or listeners.
+     * Follow up with rebuildIndices and notifyChanged. Blocks aligned to TileStorage.CHUNK_SIZE on both axes share
+     * no storage chunk, so such blocks may be written from different threads at once.
+     */
+    public void writeTiles(final int x1, final int y1, final int width, final int height, final boolean[] cells) {
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                storage.set(x1 + x, y1 + y, cells[y * width + x]);
+    }
+
+    /* Recomputes the indices of the inclusive rectangle from the tiles, without notifying listeners. */
+    public void rebuildIndices(int x1, int y1, int x2, int y2) {
+        x1 = Math.max(0, x1);
+        y1 = Math.max(0, y1);
+        x2 = Math.min(tilesX - 1, x2);
+        y2 = Math.min(tilesY - 1, y2);
+        for (int y = y1; y <= y2; y++)
+            for (int x = x1; x <= x2; x++) {
+                int bitmask = 0;
+                bitmask |= tileAt(x - 1, y) ? (1 << 3) : 0;
+                bitmask |= tileAt(x, y) ? (1 << 2) : 0;
+                bitmask |= tileAt(x - 1, y - 1) ? (1 << 1) : 0;
+                bitmask |= tileAt(x, y - 1) ? (1) : 0;
+                storage.setIndex(x, y, lookup[bitmask]);
+            }
+    }
+
+    /* Indices depend on the tile and its lower left neighbors, so a change at (x, y) also affects indices up to (x + 1, y + 1). */
+    public interface ChangeListener {
+
+        void tilesChanged(TileLayerModel tileLayer, int x1, int y1, int x2, int y2);
+
+    }
+
+}
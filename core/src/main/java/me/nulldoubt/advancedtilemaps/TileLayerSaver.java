@@ -0,0 +1,333 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.JsonValue;
+import com.badlogic.gdx.utils.StreamUtils;
+import com.badlogic.gdx.utils.TimeUtils;
+import com.badlogic.gdx.utils.UBJsonReader;
+import com.badlogic.gdx.utils.UBJsonWriter;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Saves a TileLayer without stalling the frame. save() only snapshots the layer's storage, which costs O(chunks) as
+ * chunks are copied on their next write; encoding and writing then happen on the executor, or without one
+ * (GWT, TeaVM) in time-sliced steps of update(budget). The layer can be edited while a save is running.
+ * A full save is the format of TileLayer.write (TileLayerModel.write for a bare model) and can be read by either
+ * read method. An incremental save only holds the chunks written since the previous successful save and is applied
+ * on top of the loaded layer with apply(). Until a save succeeds (or markSaved() is called) incremental saves fall
+ * back to full ones.
+ * Saves form a chain: every file carries a sequence one above the layer's save sequence, and an incremental file
+ * also the sequence of the save it is relative to. Restoring means reading the last full save and applying the
+ * incremental ones written after it in order; apply() rejects a file that doesn't follow the layer's last save.
+ */
+public class TileLayerSaver {
+
+    /* Tile rows encoded per step of a full save, chunks per step of an incremental one. */
+    private static final int ROWS_PER_STEP = 32;
+    private static final int CHUNKS_PER_STEP = 64;
+
+    private final TileLayerModel tileLayer;
+    private Listener listener;
+
+    /* Snapshot of the last save that was written completely; incremental saves are relative to it. */
+    private TileStorage.Snapshot saved;
+    private int savedSequence;
+
+    private TileStorage.Snapshot snapshot;
+    private OutputStream outputStream;
+    private boolean incremental;
+    private int sequence;
+    private final IntArray chunks;
+    private byte[] data;
+    private volatile int step;
+    private int steps;
+
+    /* Header values, captured with the snapshot so the encoder never reads the live layer; render ones only for a TileLayer. */
+    private float tileWidth;
+    private float tileHeight;
+    private float overlayScale;
+    private float unitScale;
+    private String renderStrategy;
+
+    private Executor executor;
+    private final AtomicBoolean written;
+    private final AtomicReference<Throwable> failure;
+
+    public TileLayerSaver(TileLayerModel tileLayer) {
+        this.tileLayer = tileLayer;
+        chunks = new IntArray();
+        written = new AtomicBoolean();
+        failure = new AtomicReference<>();
+    }
+
+    /*
+     * Applies an incremental save written for a layer of the same size, notifying listeners per chunk. The save must
+     * follow the one the layer was read from or last had applied, otherwise a GdxRuntimeException is thrown and the
+     * layer is left unchanged.
+     */
+    public static void apply(TileLayerModel tileLayer, InputStream inputStream) {
+        final UBJsonReader reader = new UBJsonReader();
+        reader.oldFormat = false;
+
+        final JsonValue root = reader.parse(inputStream);
+        if (root.getInt("tilesX") != tileLayer.getTilesX() || root.getInt("tilesY") != tileLayer.getTilesY())
+            throw new GdxRuntimeException("Incremental save doesn't match the layer size.");
+        if (root.getInt("chunkSize") != TileStorage.CHUNK_SIZE)
+            throw new GdxRuntimeException("Incremental save has a different chunk size: " + root.getInt("chunkSize"));
+        if (root.getInt("base", -1) != tileLayer.getSaveSequence())
+            throw new GdxRuntimeException("Incremental save " + root.getInt("sequence", -1) + " follows save " + root.getInt("base", -1)
+                + ", but the layer is at save " + tileLayer.getSaveSequence() + ".");
+
+        final int chunksX = tileLayer.getStorage().getChunksX();
+        final int[] chunks = root.get("chunks").asIntArray();
+        final byte[] data = root.get("tiles").asByteArray();
+        final boolean[] cells = new boolean[TileStorage.CHUNK_SIZE * TileStorage.CHUNK_SIZE];
+        for (int i = 0; i < chunks.length; i++) {
+            final int x1 = (chunks[i] % chunksX) * TileStorage.CHUNK_SIZE;
+            final int y1 = (chunks[i] / chunksX) * TileStorage.CHUNK_SIZE;
+            final int width = Math.min(TileStorage.CHUNK_SIZE, tileLayer.getTilesX() - x1);
+            final int height = Math.min(TileStorage.CHUNK_SIZE, tileLayer.getTilesY() - y1);
+            for (int y = 0; y < height; y++) {
+                final int offset = (i * TileStorage.CHUNK_SIZE + y) * 4;
+                final int word = (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+                for (int x = 0; x < width; x++)
+                    cells[y * width + x] = (word & (1 << x)) != 0;
+            }
+            tileLayer.writeTiles(x1, y1, width, height, cells);
+            tileLayer.rebuildIndices(x1, y1, x1 + width, y1 + height);
+            tileLayer.notifyChanged(x1, y1, x1 + width - 1, y1 + height - 1);
+        }
+        tileLayer.setSaveSequence(root.getInt("sequence"));
+    }
+
+    public TileLayerModel getTileLayer() {
+        return tileLayer;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /* Background executor for encoding and writing; null (the default) does the work in update(budget) instead. */
+    public void setExecutor(Executor executor) {
+        if (isSaving())
+            throw new IllegalStateException("Can't change the executor while saving.");
+        this.executor = executor;
+    }
+
+    public boolean isSaving() {
+        return snapshot != null;
+    }
+
+    /* Whether the running save, or else the last one started, is incremental. */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /* Number of chunks the running incremental save rewrites. */
+    public int getChangedChunks() {
+        return chunks.size;
+    }
+
+    public float getProgress() {
+        if (!isSaving())
+            return 1f;
+        return (steps == 0) ? 0f : Math.min(1f, (float) step / steps);
+    }
+
+    /* Makes the layer's current state the base for the next incremental save, e.g. right after loading it. */
+    public void markSaved() {
+        if (isSaving())
+            throw new IllegalStateException("Can't mark the layer as saved while saving.");
+        saved = tileLayer.getStorage().snapshot();
+        savedSequence = tileLayer.getSaveSequence();
+    }
+
+    /*
+     * Snapshots the layer and starts writing it to outputStream, which is closed when done. Returns false if the
+     * previous save is still running. Poll update() until it returns true.
+     * An incremental save is relative to the last save this saver wrote (or markSaved()), so it must be applied after
+     * that file; the layer's save sequence advances once the file is written completely.
+     */
+    public boolean save(OutputStream outputStream, boolean incremental) {
+        if (isSaving())
+            return false;
+
+        snapshot = tileLayer.getStorage().snapshot();
+        this.outputStream = outputStream;
+        this.incremental = incremental && saved != null;
+        sequence = tileLayer.getSaveSequence() + 1;
+        tileWidth = tileLayer.getTileWidth();
+        tileHeight = tileLayer.getTileHeight();
+        unitScale = tileLayer.getUnitScale();
+        renderStrategy = null;
+        if (tileLayer instanceof TileLayer) {
+            overlayScale = ((TileLayer) tileLayer).getOverlayScale();
+            renderStrategy = TileLayer.IntegratedStrategy.nameOf(((TileLayer) tileLayer).getRenderStrategy());
+        }
+
+        chunks.clear();
+        if (this.incremental) {
+            final int chunkCount = snapshot.getChunksX() * snapshot.getChunksY();
+            for (int i = 0; i < chunkCount; i++)
+                if (snapshot.isChunkChanged(saved, i))
+                    chunks.add(i);
+            steps = (chunks.size + CHUNKS_PER_STEP - 1) / CHUNKS_PER_STEP + 1;
+        } else
+            steps = (snapshot.getTilesY() + ROWS_PER_STEP - 1) / ROWS_PER_STEP + 1;
+        step = 0;
+        data = null;
+        written.set(false);
+        failure.set(null);
+
+        if (executor != null)
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (step < steps)
+                            step();
+                        written.set(true);
+                    } catch (Throwable throwable) {
+                        failure.set(throwable);
+                    }
+                }
+            });
+        return true;
+    }
+
+    /*
+     * Reports progress and returns true once no save is running. Without an executor this also does the work, for at
+     * most budgetSeconds (at least one step per call).
+     */
+    public boolean update(float budgetSeconds) {
+        if (!isSaving())
+            return true;
+
+        if (executor == null && failure.get() == null) {
+            final long deadline = TimeUtils.nanoTime() + (long) (budgetSeconds * 1000000000L);
+            try {
+                do
+                    step();
+                while (step < steps && TimeUtils.nanoTime() < deadline);
+                if (step == steps)
+                    written.set(true);
+            } catch (Throwable throwable) {
+                failure.set(throwable);
+            }
+        }
+
+        final Throwable throwable = failure.get();
+        if (throwable == null && !written.get()) {
+            if (listener != null)
+                listener.progress(this, getProgress());
+            return false;
+        }
+
+        if (throwable == null) {
+            saved = snapshot;
+            savedSequence = sequence;
+            tileLayer.setSaveSequence(sequence);
+        } else
+            StreamUtils.closeQuietly(outputStream);
+        snapshot = null;
+        outputStream = null;
+        data = null;
+        if (listener != null)
+            listener.finished(this, throwable == null);
+        return true;
+    }
+
+    private void step() throws Exception {
+        if (step == steps - 1)
+            write();
+        else if (incremental)
+            encodeChunks(step * CHUNKS_PER_STEP, Math.min(chunks.size, (step + 1) * CHUNKS_PER_STEP));
+        else
+            encodeRows(step * ROWS_PER_STEP, Math.min(snapshot.getTilesY(), (step + 1) * ROWS_PER_STEP));
+        step++;
+    }
+
+    /* Same bit order as TileLayer.write: row-major, least significant bit first. */
+    private void encodeRows(final int y1, final int y2) {
+        final int tilesX = snapshot.getTilesX();
+        if (data == null)
+            data = new byte[(tilesX * snapshot.getTilesY() + 7) / 8];
+        for (int y = y1; y < y2; y++)
+            for (int wordX = 0; wordX < snapshot.getChunksX(); wordX++) {
+                int word = snapshot.getWord(wordX, y);
+                while (word != 0) {
+                    final int bit = Integer.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    final int bitIndex = y * tilesX + (wordX << 5) + bit;
+                    data[bitIndex >>> 3] |= (byte) (1 << (bitIndex & 7));
+                }
+            }
+    }
+
+    /* Every listed chunk as CHUNK_SIZE little-endian row words. */
+    private void encodeChunks(final int from, final int to) {
+        if (data == null)
+            data = new byte[chunks.size * TileStorage.CHUNK_SIZE * 4];
+        final int chunksX = snapshot.getChunksX();
+        for (int i = from; i < to; i++) {
+            final int chunk = chunks.get(i);
+            final int y1 = (chunk / chunksX) * TileStorage.CHUNK_SIZE;
+            final int height = Math.min(TileStorage.CHUNK_SIZE, snapshot.getTilesY() - y1);
+            for (int y = 0; y < height; y++) {
+                final int word = snapshot.getWord(chunk % chunksX, y1 + y);
+                final int offset = (i * TileStorage.CHUNK_SIZE + y) * 4;
+                data[offset] = (byte) word;
+                data[offset + 1] = (byte) (word >>> 8);
+                data[offset + 2] = (byte) (word >>> 16);
+                data[offset + 3] = (byte) (word >>> 24);
+            }
+        }
+    }
+
+    private void write() throws Exception {
+        if (data == null)
+            data = new byte[0];
+        try (final UBJsonWriter writer = new UBJsonWriter(outputStream)) {
+            writer.object()
+                .set("tilesX", snapshot.getTilesX())
+                .set("tilesY", snapshot.getTilesY())
+                .set("sequence", sequence);
+            if (incremental)
+                writer
+                    .set("base", savedSequence)
+                    .set("chunkSize", TileStorage.CHUNK_SIZE)
+                    .set("chunks", chunks.toArray());
+            else {
+                writer
+                    .set("tileWidth", tileWidth)
+                    .set("tileHeight", tileHeight)
+                    .set("unitScale", unitScale);
+                if (renderStrategy != null)
+                    writer
+                        .set("overlayScale", overlayScale)
+                        .set("renderStrategy", renderStrategy);
+            }
+            writer
+                .set("tiles", data)
+                .pop()
+                .flush();
+        }
+    }
+
+    public interface Listener {
+
+        void progress(TileLayerSaver saver, float progress);
+
+        /* Called from update() once the save is done; written is false if it failed, the layer stays dirty then. */
+        void finished(TileLayerSaver saver, boolean written);
+
+    }
+
+}
@@ -0,0 +1,557 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntFloatMap;
+import com.badlogic.gdx.utils.IntIntMap;
+
+import java.util.Arrays;
+
+/*
+ * Hierarchical A* over the occupancy of a TileLayer.
+ * The layer is split into clusters of CLUSTER_SIZE x CLUSTER_SIZE tiles, each labelled into 4-connected regions.
+ * Regions of neighboring clusters that touch form the abstract graph; a path is first searched on that graph,
+ * then refined with an 8-directional A* restricted to the regions along the abstract path.
+ * Labels and edges are cached per cluster and only rebuilt for clusters touched by tileAt(x, y, state) or fill.
+ * Searches may run on several threads at once, each with its own Scratch, but not concurrently with edits.
+ */
+public class TilePathfinder implements TileLayerModel.ChangeListener {
+
+    public static final int CLUSTER_SIZE = 16;
+
+    private static final int CLUSTER_SHIFT = 4;
+    private static final int CLUSTER_TILES = CLUSTER_SIZE * CLUSTER_SIZE;
+    private static final int REGION_BITS = 7;
+    private static final int REGION_MASK = (1 << REGION_BITS) - 1;
+    private static final byte UNLABELLED = -2;
+    private static final float DIAGONAL = 1.4142135f;
+
+    private static final int[] clusterDX = {1, 0, -1, 0};
+    private static final int[] clusterDY = {0, 1, 0, -1};
+
+    private final TileLayerModel tileLayer;
+    private final boolean walkable;
+
+    private final int clustersX;
+    private final int clustersY;
+
+    /* Region of every tile within its cluster, -1 for blocked tiles. */
+    private final byte[] labels;
+    /* Per cluster, edges packed as (region | direction << 8 | neighborRegion << 16). */
+    private final int[][] edges;
+    private final int[] edgeCounts;
+
+    private final boolean[] labelsDirty;
+    private final boolean[] edgesDirty;
+    private final IntArray dirtyClusters;
+    private final int[] floodStack;
+
+    public TilePathfinder(TileLayerModel tileLayer) {
+        this(tileLayer, false);
+    }
+
+    /* Tiles whose state equals walkable can be walked on, the others block. */
+    public TilePathfinder(TileLayerModel tileLayer, boolean walkable) {
+        this.tileLayer = tileLayer;
+        this.walkable = walkable;
+
+        clustersX = (tileLayer.getTilesX() + CLUSTER_SIZE - 1) >>> CLUSTER_SHIFT;
+        clustersY = (tileLayer.getTilesY() + CLUSTER_SIZE - 1) >>> CLUSTER_SHIFT;
+        final int clusters = clustersX * clustersY;
+
+        labels = new byte[tileLayer.getTilesX() * tileLayer.getTilesY()];
+        edges = new int[clusters][];
+        edgeCounts = new int[clusters];
+
+        labelsDirty = new boolean[clusters];
+        edgesDirty = new boolean[clusters];
+        dirtyClusters = new IntArray(false, clusters);
+        floodStack = new int[CLUSTER_TILES];
+
+        invalidate(0, 0, tileLayer.getTilesX() - 1, tileLayer.getTilesY() - 1);
+        tileLayer.addChangeListener(this);
+    }
+
+    public TileLayerModel getTileLayer() {
+        return tileLayer;
+    }
+
+    public Scratch newScratch() {
+        return new Scratch(clustersX * clustersY);
+    }
+
+    /* Stops listening for edits; the pathfinder must not be used afterwards. */
+    public void dispose() {
+        tileLayer.removeChangeListener(this);
+    }
+
+    @Override
+    public void tilesChanged(TileLayerModel tileLayer, int x1, int y1, int x2, int y2) {
+        invalidate(x1, y1, x2, y2);
+    }
+
+    /* Marks the clusters covering the inclusive tile rectangle, and the edges of their neighbors, for rebuilding. */
+    public synchronized void invalidate(int x1, int y1, int x2, int y2) {
+        final int cx1 = Math.max(0, x1 >> CLUSTER_SHIFT);
+        final int cy1 = Math.max(0, y1 >> CLUSTER_SHIFT);
+        final int cx2 = Math.min(clustersX - 1, x2 >> CLUSTER_SHIFT);
+        final int cy2 = Math.min(clustersY - 1, y2 >> CLUSTER_SHIFT);
+        for (int cy = cy1; cy <= cy2; cy++)
+            for (int cx = cx1; cx <= cx2; cx++) {
+                final int cluster = cy * clustersX + cx;
+                if (!labelsDirty[cluster]) {
+                    labelsDirty[cluster] = true;
+                    dirtyClusters.add(cluster);
+                }
+                for (int d = -1; d < 4; d++) {
+                    final int nX = cx + (d < 0 ? 0 : clusterDX[d]);
+                    final int nY = cy + (d < 0 ? 0 : clusterDY[d]);
+                    if (nX >= 0 && nY >= 0 && nX < clustersX && nY < clustersY)
+                        edgesDirty[nY * clustersX + nX] = true;
+                }
+            }
+    }
+
+    private synchronized void validate() {
+        if (dirtyClusters.size == 0)
+            return;
+        final int[] dirty = dirtyClusters.items;
+        final int count = dirtyClusters.size;
+        for (int i = 0; i < count; i++)
+            label(dirty[i]);
+        for (int i = 0; i < count; i++) {
+            final int cluster = dirty[i];
+            final int cx = cluster % clustersX;
+            final int cy = cluster / clustersX;
+            for (int d = -1; d < 4; d++) {
+                final int nX = cx + (d < 0 ? 0 : clusterDX[d]);
+                final int nY = cy + (d < 0 ? 0 : clusterDY[d]);
+                if (nX < 0 || nY < 0 || nX >= clustersX || nY >= clustersY)
+                    continue;
+                final int neighbor = nY * clustersX + nX;
+                if (edgesDirty[neighbor])
+                    link(neighbor);
+            }
+        }
+        dirtyClusters.clear();
+    }
+
+    private void label(final int cluster) {
+        labelsDirty[cluster] = false;
+        final int tilesX = tileLayer.getTilesX();
+        final int x1 = (cluster % clustersX) << CLUSTER_SHIFT;
+        final int y1 = (cluster / clustersX) << CLUSTER_SHIFT;
+        final int x2 = Math.min(tilesX, x1 + CLUSTER_SIZE);
+        final int y2 = Math.min(tileLayer.getTilesY(), y1 + CLUSTER_SIZE);
+
+        for (int y = y1; y < y2; y++)
+            for (int x = x1; x < x2; x++)
+                labels[y * tilesX + x] = (tileLayer.tileAt(x, y) == walkable ? UNLABELLED : -1);
+
+        int regions = 0;
+        for (int y = y1; y < y2; y++)
+            for (int x = x1; x < x2; x++) {
+                if (labels[y * tilesX + x] != UNLABELLED)
+                    continue;
+                final byte region = (byte) regions++;
+                int top = 0;
+                floodStack[top++] = y * tilesX + x;
+                labels[y * tilesX + x] = region;
+                while (top > 0) {
+                    final int tile = floodStack[--top];
+                    final int tX = tile % tilesX;
+                    final int tY = tile / tilesX;
+                    if (tX > x1 && labels[tile - 1] == UNLABELLED) {
+                        labels[tile - 1] = region;
+                        floodStack[top++] = tile - 1;
+                    }
+                    if (tX < x2 - 1 && labels[tile + 1] == UNLABELLED) {
+                        labels[tile + 1] = region;
+                        floodStack[top++] = tile + 1;
+                    }
+                    if (tY > y1 && labels[tile - tilesX] == UNLABELLED) {
+                        labels[tile - tilesX] = region;
+                        floodStack[top++] = tile - tilesX;
+                    }
+                    if (tY < y2 - 1 && labels[tile + tilesX] == UNLABELLED) {
+                        labels[tile + tilesX] = region;
+                        floodStack[top++] = tile + tilesX;
+                    }
+                }
+            }
+    }
+
+    private void link(final int cluster) {
+        edgesDirty[cluster] = false;
+        edgeCounts[cluster] = 0;
+        final int tilesX = tileLayer.getTilesX();
+        final int cx = cluster % clustersX;
+        final int cy = cluster / clustersX;
+        final int x1 = cx << CLUSTER_SHIFT;
+        final int y1 = cy << CLUSTER_SHIFT;
+        final int x2 = Math.min(tilesX, x1 + CLUSTER_SIZE) - 1;
+        final int y2 = Math.min(tileLayer.getTilesY(), y1 + CLUSTER_SIZE) - 1;
+
+        for (int d = 0; d < 4; d++) {
+            final int nX = cx + clusterDX[d];
+            final int nY = cy + clusterDY[d];
+            if (nX < 0 || nY < 0 || nX >= clustersX || nY >= clustersY)
+                continue;
+            final boolean vertical = (clusterDX[d] == 0);
+            final int from = vertical ? x1 : y1;
+            final int to = vertical ? x2 : y2;
+            for (int i = from; i <= to; i++) {
+                final int inside, outside;
+                if (vertical) {
+                    inside = (d == 1 ? y2 : y1) * tilesX + i;
+                    outside = inside + (d == 1 ? tilesX : -tilesX);
+                } else {
+                    inside = i * tilesX + (d == 0 ? x2 : x1);
+                    outside = inside + (d == 0 ? 1 : -1);
+                }
+                if (labels[inside] < 0 || labels[outside] < 0)
+                    continue;
+                addEdge(cluster, labels[inside] | d << 8 | labels[outside] << 16);
+            }
+        }
+    }
+
+    private void addEdge(final int cluster, final int edge) {
+        int[] list = edges[cluster];
+        final int count = edgeCounts[cluster];
+        if (list == null)
+            list = edges[cluster] = new int[8];
+        for (int i = 0; i < count; i++)
+            if (list[i] == edge)
+                return;
+        if (count == list.length)
+            list = edges[cluster] = Arrays.copyOf(list, count << 1);
+        list[count] = edge;
+        edgeCounts[cluster] = count + 1;
+    }
+
+    /* Whether the two tiles are connected at all, answered from the abstract graph alone. */
+    public boolean isReachable(Scratch scratch, int startX, int startY, int goalX, int goalY) {
+        validate();
+        if (!isWalkable(startX, startY) || !isWalkable(goalX, goalY))
+            return false;
+        return searchAbstract(scratch, startX, startY, goalX, goalY);
+    }
+
+    public boolean isWalkable(int x, int y) {
+        return !tileLayer.isOutOfBounds(x, y) && tileLayer.tileAt(x, y) == walkable;
+    }
+
+    /* Finds a path and writes it into path as (x, y) pairs from start to goal; returns false if there is none. */
+    public boolean findPath(Scratch scratch, int startX, int startY, int goalX, int goalY, IntArray path) {
+        path.clear();
+        validate();
+        if (!isWalkable(startX, startY) || !isWalkable(goalX, goalY))
+            return false;
+        if (startX == goalX && startY == goalY) {
+            path.add(startX, startY);
+            return true;
+        }
+        if (!searchAbstract(scratch, startX, startY, goalX, goalY))
+            return false;
+        return searchTiles(scratch, startX, startY, goalX, goalY, path);
+    }
+
+    private int nodeOf(final int x, final int y) {
+        final int cluster = (y >> CLUSTER_SHIFT) * clustersX + (x >> CLUSTER_SHIFT);
+        return cluster << REGION_BITS | labels[y * tileLayer.getTilesX() + x];
+    }
+
+    private float clusterDistance(final int clusterA, final int clusterB) {
+        final int dx = Math.abs(clusterA % clustersX - clusterB % clustersX);
+        final int dy = Math.abs(clusterA / clustersX - clusterB / clustersX);
+        return (dx + dy) * CLUSTER_SIZE;
+    }
+
+    /* A* over cluster regions; on success the corridor of the path is left in the scratch. */
+    private boolean searchAbstract(final Scratch scratch, final int startX, final int startY, final int goalX, final int goalY) {
+        final int start = nodeOf(startX, startY);
+        final int goal = nodeOf(goalX, goalY);
+        final int goalCluster = goal >>> REGION_BITS;
+
+        scratch.beginCorridor();
+        final IntFloatMap costs = scratch.abstractCosts;
+        final IntIntMap parents = scratch.abstractParents;
+        final Heap open = scratch.abstractOpen;
+        costs.clear();
+        parents.clear();
+        open.clear();
+
+        costs.put(start, 0f);
+        parents.put(start, start);
+        open.push(start, clusterDistance(start >>> REGION_BITS, goalCluster));
+
+        while (open.size > 0) {
+            final float priority = open.peekPriority();
+            final int node = open.pop();
+            final int cluster = node >>> REGION_BITS;
+            final float cost = costs.get(node, Float.POSITIVE_INFINITY);
+            if (priority > cost + clusterDistance(cluster, goalCluster))
+                continue;
+
+            if (node == goal) {
+                int current = goal;
+                while (true) {
+                    scratch.allow(current >>> REGION_BITS, current & REGION_MASK);
+                    if (current == start)
+                        return true;
+                    current = parents.get(current, start);
+                }
+            }
+
+            final int[] list = edges[cluster];
+            final int region = node & REGION_MASK;
+            for (int i = 0, n = edgeCounts[cluster]; i < n; i++) {
+                final int edge = list[i];
+                if ((edge & 0xFF) != region)
+                    continue;
+                final int d = (edge >>> 8) & 0xFF;
+                final int neighborCluster = cluster + clusterDX[d] + clusterDY[d] * clustersX;
+                final int neighbor = neighborCluster << REGION_BITS | (edge >>> 16);
+                final float neighborCost = cost + CLUSTER_SIZE;
+                if (neighborCost >= costs.get(neighbor, Float.POSITIVE_INFINITY))
+                    continue;
+                costs.put(neighbor, neighborCost);
+                parents.put(neighbor, node);
+                open.push(neighbor, neighborCost + clusterDistance(neighborCluster, goalCluster));
+            }
+        }
+        return false;
+    }
+
+    /* 8-directional A* without corner cutting, limited to the corridor left by searchAbstract. */
+    private boolean searchTiles(final Scratch scratch, final int startX, final int startY, final int goalX, final int goalY, final IntArray path) {
+        final int tilesX = tileLayer.getTilesX();
+        final int tilesY = tileLayer.getTilesY();
+        scratch.beginTiles();
+        final float[] costs = scratch.costs;
+        final int[] parents = scratch.parents;
+        final int[] visited = scratch.visited;
+        final int[] closed = scratch.closed;
+        final int generation = scratch.generation;
+        final Heap open = scratch.tileOpen;
+        open.clear();
+
+        final int start = scratch.nodeOf(startX, startY);
+        final int goal = scratch.nodeOf(goalX, goalY);
+        visited[start] = generation;
+        costs[start] = 0f;
+        parents[start] = -1;
+        open.push(start, octile(startX, startY, goalX, goalY));
+
+        while (open.size > 0) {
+            final int node = open.pop();
+            if (closed[node] == generation)
+                continue;
+            closed[node] = generation;
+
+            final int x = scratch.tileX(node);
+            final int y = scratch.tileY(node);
+            if (node == goal) {
+                for (int current = goal; current != -1; current = parents[current])
+                    path.add(scratch.tileX(current), scratch.tileY(current));
+                reversePairs(path);
+                return true;
+            }
+
+            final float cost = costs[node];
+            for (int dy = -1; dy <= 1; dy++)
+                for (int dx = -1; dx <= 1; dx++) {
+                    if (dx == 0 && dy == 0)
+                        continue;
+                    final int nX = x + dx;
+                    final int nY = y + dy;
+                    if (nX < 0 || nY < 0 || nX >= tilesX || nY >= tilesY)
+                        continue;
+                    if (!scratch.isAllowed(nX, nY, labels[nY * tilesX + nX]))
+                        continue;
+                    if (dx != 0 && dy != 0 && (labels[y * tilesX + nX] < 0 || labels[nY * tilesX + x] < 0))
+                        continue;
+                    final int neighbor = scratch.nodeOf(nX, nY);
+                    if (closed[neighbor] == generation)
+                        continue;
+                    final float neighborCost = cost + (dx != 0 && dy != 0 ? DIAGONAL : 1f);
+                    if (visited[neighbor] == generation && neighborCost >= costs[neighbor])
+                        continue;
+                    visited[neighbor] = generation;
+                    costs[neighbor] = neighborCost;
+                    parents[neighbor] = node;
+                    open.push(neighbor, neighborCost + octile(nX, nY, goalX, goalY));
+                }
+        }
+        return false;
+    }
+
+    private static float octile(final int x1, final int y1, final int x2, final int y2) {
+        final int dx = Math.abs(x1 - x2);
+        final int dy = Math.abs(y1 - y2);
+        return Math.max(dx, dy) + (DIAGONAL - 1f) * Math.min(dx, dy);
+    }
+
+    private static void reversePairs(final IntArray path) {
+        final int[] items = path.items;
+        for (int i = 0, j = path.size - 2; i < j; i += 2, j -= 2) {
+            final int x = items[i];
+            final int y = items[i + 1];
+            items[i] = items[j];
+            items[i + 1] = items[j + 1];
+            items[j] = x;
+            items[j + 1] = y;
+        }
+    }
+
+    /* Reusable search state; keep one per thread. */
+    public class Scratch {
+
+        private final IntFloatMap abstractCosts = new IntFloatMap();
+        private final IntIntMap abstractParents = new IntIntMap();
+        private final Heap abstractOpen = new Heap(64);
+        private final Heap tileOpen = new Heap(256);
+
+        /* Corridor clusters map to slots, slots hold the allowed regions as a 128 bit mask. */
+        private final int[] clusterSlots;
+        private final int[] clusterStamps;
+        private int[] slotClusters = new int[16];
+        private int[] slotRegions = new int[64];
+        private int slots;
+        private int corridor;
+
+        private float[] costs = new float[0];
+        private int[] parents = new int[0];
+        private int[] visited = new int[0];
+        private int[] closed = new int[0];
+        private int generation;
+
+        private Scratch(int clusters) {
+            clusterSlots = new int[clusters];
+            clusterStamps = new int[clusters];
+        }
+
+        private void beginCorridor() {
+            corridor++;
+            slots = 0;
+        }
+
+        private void allow(final int cluster, final int region) {
+            int slot;
+            if (clusterStamps[cluster] == corridor)
+                slot = clusterSlots[cluster];
+            else {
+                slot = slots++;
+                if (slot == slotClusters.length) {
+                    slotClusters = Arrays.copyOf(slotClusters, slot << 1);
+                    slotRegions = Arrays.copyOf(slotRegions, slot << 3);
+                }
+                clusterStamps[cluster] = corridor;
+                clusterSlots[cluster] = slot;
+                slotClusters[slot] = cluster;
+                Arrays.fill(slotRegions, slot << 2, (slot << 2) + 4, 0);
+            }
+            slotRegions[(slot << 2) + (region >>> 5)] |= 1 << (region & 31);
+        }
+
+        private void beginTiles() {
+            final int nodes = slots * CLUSTER_TILES;
+            if (visited.length < nodes) {
+                final int capacity = Math.max(nodes, visited.length + (visited.length >> 1));
+                costs = new float[capacity];
+                parents = new int[capacity];
+                visited = new int[capacity];
+                closed = new int[capacity];
+                generation = 0;
+            }
+            generation++;
+        }
+
+        private boolean isAllowed(final int x, final int y, final byte region) {
+            if (region < 0)
+                return false;
+            final int cluster = (y >> CLUSTER_SHIFT) * clustersX + (x >> CLUSTER_SHIFT);
+            if (clusterStamps[cluster] != corridor)
+                return false;
+            final int slot = clusterSlots[cluster];
+            return (slotRegions[(slot << 2) + (region >>> 5)] & (1 << (region & 31))) != 0;
+        }
+
+        private int nodeOf(final int x, final int y) {
+            final int cluster = (y >> CLUSTER_SHIFT) * clustersX + (x >> CLUSTER_SHIFT);
+            return clusterSlots[cluster] * CLUSTER_TILES + ((y & (CLUSTER_SIZE - 1)) << CLUSTER_SHIFT) + (x & (CLUSTER_SIZE - 1));
+        }
+
+        private int tileX(final int node) {
+            return (slotClusters[node / CLUSTER_TILES] % clustersX << CLUSTER_SHIFT) + (node & (CLUSTER_SIZE - 1));
+        }
+
+        private int tileY(final int node) {
+            return (slotClusters[node / CLUSTER_TILES] / clustersX << CLUSTER_SHIFT) + ((node >> CLUSTER_SHIFT) & (CLUSTER_SIZE - 1));
+        }
+
+    }
+
+    /* Binary min-heap of int nodes keyed by float priorities; stale entries are skipped by the searches. */
+    static final class Heap {
+
+        int[] nodes;
+        float[] priorities;
+        int size;
+
+        Heap(int capacity) {
+            nodes = new int[capacity];
+            priorities = new float[capacity];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void push(final int node, final float priority) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size << 1);
+                priorities = Arrays.copyOf(priorities, size << 1);
+            }
+            int i = size++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (priorities[parent] <= priority)
+                    break;
+                nodes[i] = nodes[parent];
+                priorities[i] = priorities[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            priorities[i] = priority;
+        }
+
+        float peekPriority() {
+            return priorities[0];
+        }
+
+        int pop() {
+            final int result = nodes[0];
+            final int lastNode = nodes[--size];
+            final float last = priorities[size];
+            int i = 0;
+            while (true) {
+                int child = (i << 1) + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && priorities[child + 1] < priorities[child])
+                    child++;
+                if (priorities[child] >= last)
+                    break;
+                nodes[i] = nodes[child];
+                priorities[i] = priorities[child];
+                i = child;
+            }
+            nodes[i] = lastNode;
+            priorities[i] = last;
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,352 @@
+package me.nulldoubt.advancedtilemaps;
+
+/*
+ * Raycasts, AABB sweeps and overlap tests against the occupancy of a TileLayer, in world units.
+ * Nothing is allocated per query; results are written into caller-supplied objects or arrays.
+ * Empty space is skipped a whole occupancy word (32 tiles of a row) at a time.
+ * An instance only holds scratch state, so keep one per thread.
+ */
+public class TileQueries {
+
+    /* Batched rays are packed as (x1, y1, x2, y2). */
+    public static final int RAY_STRIDE = 4;
+    /* Batched boxes are packed as (x, y, width, height) for overlaps and (x, y, width, height, dx, dy) for sweeps. */
+    public static final int BOX_STRIDE = 4;
+    public static final int SWEEP_STRIDE = 6;
+    /* Batched hits are packed as (fraction, normalX, normalY). */
+    public static final int HIT_STRIDE = 3;
+
+    private final Hit scratch = new Hit();
+
+    /* Casts every ray, writes one hit per ray and the hit tile (x + y * tilesX, or -1) into cells; returns the number of hits. */
+    public int raycast(final TileLayerModel tileLayer, final float[] rays, final int count, final float[] hits, final int[] cells) {
+        int hitCount = 0;
+        for (int i = 0; i < count; i++) {
+            final int ray = i * RAY_STRIDE;
+            final boolean hit = raycast(tileLayer, rays[ray], rays[ray + 1], rays[ray + 2], rays[ray + 3], scratch);
+            hitCount += store(tileLayer, hit, i, hits, cells);
+        }
+        return hitCount;
+    }
+
+    /* Sweeps every box, writes one hit per box and the hit tile (x + y * tilesX, or -1) into cells; returns the number of hits. */
+    public int sweep(final TileLayerModel tileLayer, final float[] boxes, final int count, final float[] hits, final int[] cells) {
+        int hitCount = 0;
+        for (int i = 0; i < count; i++) {
+            final int box = i * SWEEP_STRIDE;
+            final boolean hit = sweep(tileLayer, boxes[box], boxes[box + 1], boxes[box + 2], boxes[box + 3], boxes[box + 4], boxes[box + 5], scratch);
+            hitCount += store(tileLayer, hit, i, hits, cells);
+        }
+        return hitCount;
+    }
+
+    /* Tests every box and writes the outcome into results; returns the number of overlapping boxes. */
+    public int overlaps(final TileLayerModel tileLayer, final float[] boxes, final int count, final boolean[] results) {
+        int overlapCount = 0;
+        for (int i = 0; i < count; i++) {
+            final int box = i * BOX_STRIDE;
+            if (results[i] = overlaps(tileLayer, boxes[box], boxes[box + 1], boxes[box + 2], boxes[box + 3]))
+                overlapCount++;
+        }
+        return overlapCount;
+    }
+
+    private int store(final TileLayerModel tileLayer, final boolean hit, final int i, final float[] hits, final int[] cells) {
+        final int offset = i * HIT_STRIDE;
+        hits[offset] = scratch.fraction;
+        hits[offset + 1] = scratch.normalX;
+        hits[offset + 2] = scratch.normalY;
+        cells[i] = hit ? scratch.tileX + scratch.tileY * tileLayer.getTilesX() : -1;
+        return hit ? 1 : 0;
+    }
+
+    /* Traces the segment (x1, y1) -> (x2, y2) through the grid and reports the first filled tile it enters. */
+    public static boolean raycast(final TileLayerModel tileLayer, final float x1, final float y1, final float x2, final float y2, final Hit hit) {
+        hit.reset();
+
+        final int tilesX = tileLayer.getTilesX();
+        final int tilesY = tileLayer.getTilesY();
+        final float startX = tileLayer.worldToTileX(x1);
+        final float startY = tileLayer.worldToTileY(y1);
+        final float dx = tileLayer.worldToTileX(x2) - startX;
+        final float dy = tileLayer.worldToTileY(y2) - startY;
+
+        /* Clip the segment against the grid so rays starting far outside don't walk empty cells. */
+        float tEnter = 0f;
+        float tExit = 1f;
+        float enterNormalX = 0f;
+        float enterNormalY = 0f;
+        if (dx == 0f) {
+            if (startX < 0f || startX >= tilesX)
+                return false;
+        } else {
+            float near = (0f - startX) / dx;
+            float far = (tilesX - startX) / dx;
+            if (near > far) {
+                final float swap = near;
+                near = far;
+                far = swap;
+            }
+            if (near > tEnter) {
+                tEnter = near;
+                enterNormalX = dx > 0f ? -1f : 1f;
+            }
+            tExit = Math.min(tExit, far);
+        }
+        if (dy == 0f) {
+            if (startY < 0f || startY >= tilesY)
+                return false;
+        } else {
+            float near = (0f - startY) / dy;
+            float far = (tilesY - startY) / dy;
+            if (near > far) {
+                final float swap = near;
+                near = far;
+                far = swap;
+            }
+            if (near > tEnter) {
+                tEnter = near;
+                enterNormalX = 0f;
+                enterNormalY = dy > 0f ? -1f : 1f;
+            }
+            tExit = Math.min(tExit, far);
+        }
+        if (tEnter > tExit)
+            return false;
+
+        int cellX = clamp((int) Math.floor(startX + dx * tEnter), 0, tilesX - 1);
+        int cellY = clamp((int) Math.floor(startY + dy * tEnter), 0, tilesY - 1);
+
+        final int stepX = dx > 0f ? 1 : dx < 0f ? -1 : 0;
+        final int stepY = dy > 0f ? 1 : dy < 0f ? -1 : 0;
+        final float tDeltaX = stepX != 0 ? Math.abs(1f / dx) : Float.POSITIVE_INFINITY;
+        final float tDeltaY = stepY != 0 ? Math.abs(1f / dy) : Float.POSITIVE_INFINITY;
+        float tMaxX = stepX > 0 ? (cellX + 1 - startX) / dx : stepX < 0 ? (cellX - startX) / dx : Float.POSITIVE_INFINITY;
+        float tMaxY = stepY > 0 ? (cellY + 1 - startY) / dy : stepY < 0 ? (cellY - startY) / dy : Float.POSITIVE_INFINITY;
+
+        float t = tEnter;
+        float normalX = enterNormalX;
+        float normalY = enterNormalY;
+
+        while (true) {
+            final int word = tileLayer.occupancyWord(cellX >>> 5, cellY);
+            if ((word & (1 << (cellX & 31))) != 0) {
+                hit.set(tileLayer, cellX, cellY, t, x1 + (x2 - x1) * t, y1 + (y2 - y1) * t, normalX, normalY);
+                return true;
+            }
+
+            if (word == 0 && stepX != 0) {
+                /* The rest of this word is empty, so jump straight to where the ray leaves it. */
+                final int remaining = stepX > 0 ? Math.min(tilesX, (cellX | 31) + 1) - 1 - cellX : cellX & 31;
+                final float tSpan = tMaxX + remaining * tDeltaX;
+                if (tSpan < tMaxY) {
+                    t = tSpan;
+                    cellX += stepX * (remaining + 1);
+                    tMaxX = tSpan + tDeltaX;
+                    normalX = -stepX;
+                    normalY = 0f;
+                } else {
+                    if (tMaxX < tMaxY) {
+                        final int skipped = Math.min(remaining, (int) Math.ceil((tMaxY - tMaxX) / tDeltaX));
+                        cellX += stepX * skipped;
+                        tMaxX += skipped * tDeltaX;
+                    }
+                    t = tMaxY;
+                    cellY += stepY;
+                    tMaxY += tDeltaY;
+                    normalX = 0f;
+                    normalY = -stepY;
+                }
+            } else if (tMaxX < tMaxY) {
+                t = tMaxX;
+                cellX += stepX;
+                tMaxX += tDeltaX;
+                normalX = -stepX;
+                normalY = 0f;
+            } else {
+                t = tMaxY;
+                cellY += stepY;
+                tMaxY += tDeltaY;
+                normalX = 0f;
+                normalY = -stepY;
+            }
+
+            if (t > tExit || tileLayer.isOutOfBounds(cellX, cellY))
+                return false;
+        }
+    }
+
+    /* Moves the box (x, y, width, height) by (dx, dy) and reports the first filled tile it touches. */
+    public static boolean sweep(final TileLayerModel tileLayer, final float x, final float y, final float width, final float height, final float dx, final float dy, final Hit hit) {
+        hit.reset();
+
+        final float tileWidth = tileLayer.getTileWidth() * tileLayer.getUnitScale();
+        final float tileHeight = tileLayer.getTileHeight() * tileLayer.getUnitScale();
+        final float boxX = tileLayer.worldToTileX(x);
+        final float boxY = tileLayer.worldToTileY(y);
+        final float boxWidth = width / tileWidth;
+        final float boxHeight = height / tileHeight;
+        final float moveX = dx / tileWidth;
+        final float moveY = dy / tileHeight;
+
+        final int col1 = Math.max(0, (int) Math.floor(Math.min(boxX, boxX + moveX)));
+        final int col2 = Math.min(tileLayer.getTilesX() - 1, (int) Math.ceil(Math.max(boxX, boxX + moveX) + boxWidth) - 1);
+        final int row1 = Math.max(0, (int) Math.floor(Math.min(boxY, boxY + moveY)));
+        final int row2 = Math.min(tileLayer.getTilesY() - 1, (int) Math.ceil(Math.max(boxY, boxY + moveY) + boxHeight) - 1);
+        if (col1 > col2 || row1 > row2)
+            return false;
+
+        float best = Float.POSITIVE_INFINITY;
+        int bestX = -1;
+        int bestY = -1;
+        float bestNormalX = 0f;
+        float bestNormalY = 0f;
+
+        final int wordX1 = col1 >>> 5;
+        final int wordX2 = col2 >>> 5;
+        for (int row = row1; row <= row2; row++) {
+            for (int wordX = wordX1; wordX <= wordX2; wordX++) {
+                int word = tileLayer.occupancyWord(wordX, row) & spanMask(wordX, col1, col2);
+                while (word != 0) {
+                    final int col = (wordX << 5) + Integer.numberOfTrailingZeros(word);
+                    word &= word - 1;
+
+                    float enterX, exitX, enterY, exitY;
+                    if (moveX == 0f) {
+                        if (boxX >= col + 1 || boxX + boxWidth <= col)
+                            continue;
+                        enterX = Float.NEGATIVE_INFINITY;
+                        exitX = Float.POSITIVE_INFINITY;
+                    } else if (moveX > 0f) {
+                        enterX = (col - (boxX + boxWidth)) / moveX;
+                        exitX = (col + 1 - boxX) / moveX;
+                    } else {
+                        enterX = (col + 1 - boxX) / moveX;
+                        exitX = (col - (boxX + boxWidth)) / moveX;
+                    }
+                    if (moveY == 0f) {
+                        if (boxY >= row + 1 || boxY + boxHeight <= row)
+                            continue;
+                        enterY = Float.NEGATIVE_INFINITY;
+                        exitY = Float.POSITIVE_INFINITY;
+                    } else if (moveY > 0f) {
+                        enterY = (row - (boxY + boxHeight)) / moveY;
+                        exitY = (row + 1 - boxY) / moveY;
+                    } else {
+                        enterY = (row + 1 - boxY) / moveY;
+                        exitY = (row - (boxY + boxHeight)) / moveY;
+                    }
+
+                    final float enter = Math.max(enterX, enterY);
+                    final float exit = Math.min(exitX, exitY);
+                    if (enter >= exit || exit <= 0f || enter > 1f || enter >= best)
+                        continue;
+
+                    best = Math.max(0f, enter);
+                    bestX = col;
+                    bestY = row;
+                    if (enter < 0f) {
+                        bestNormalX = 0f;
+                        bestNormalY = 0f;
+                    } else if (enterX > enterY) {
+                        bestNormalX = moveX > 0f ? -1f : 1f;
+                        bestNormalY = 0f;
+                    } else {
+                        bestNormalX = 0f;
+                        bestNormalY = moveY > 0f ? -1f : 1f;
+                    }
+                }
+            }
+        }
+
+        if (bestX < 0)
+            return false;
+        hit.set(tileLayer, bestX, bestY, best, x + dx * best, y + dy * best, bestNormalX, bestNormalY);
+        return true;
+    }
+
+    /* Whether the box (x, y, width, height) overlaps any filled tile; touching edges don't count. */
+    public static boolean overlaps(final TileLayerModel tileLayer, final float x, final float y, final float width, final float height) {
+        final float tileWidth = tileLayer.getTileWidth() * tileLayer.getUnitScale();
+        final float tileHeight = tileLayer.getTileHeight() * tileLayer.getUnitScale();
+        final float boxX = tileLayer.worldToTileX(x);
+        final float boxY = tileLayer.worldToTileY(y);
+
+        final int col1 = Math.max(0, (int) Math.floor(boxX));
+        final int col2 = Math.min(tileLayer.getTilesX() - 1, (int) Math.ceil(boxX + width / tileWidth) - 1);
+        final int row1 = Math.max(0, (int) Math.floor(boxY));
+        final int row2 = Math.min(tileLayer.getTilesY() - 1, (int) Math.ceil(boxY + height / tileHeight) - 1);
+        return countFilled(tileLayer, col1, row1, col2, row2, true) != 0;
+    }
+
+    /* Counts the filled tiles in the inclusive tile rectangle, optionally stopping at the first one. */
+    public static int countFilled(final TileLayerModel tileLayer, final int col1, final int row1, final int col2, final int row2, final boolean any) {
+        if (col1 > col2 || row1 > row2)
+            return 0;
+        int count = 0;
+        final int wordX1 = col1 >>> 5;
+        final int wordX2 = col2 >>> 5;
+        for (int row = row1; row <= row2; row++) {
+            for (int wordX = wordX1; wordX <= wordX2; wordX++) {
+                final int word = tileLayer.occupancyWord(wordX, row) & spanMask(wordX, col1, col2);
+                if (word == 0)
+                    continue;
+                if (any)
+                    return 1;
+                count += Integer.bitCount(word);
+            }
+        }
+        return count;
+    }
+
+    /* Bits of word wordX that fall into the inclusive column range [col1, col2]. */
+    static int spanMask(final int wordX, final int col1, final int col2) {
+        final int first = wordX << 5;
+        int mask = -1;
+        if (col1 > first)
+            mask &= -1 << (col1 - first);
+        if (col2 < first + 31)
+            mask &= -1 >>> (31 - (col2 - first));
+        return mask;
+    }
+
+    private static int clamp(final int value, final int min, final int max) {
+        return value < min ? min : (value > max ? max : value);
+    }
+
+    public static class Hit {
+
+        /* Position along the query in [0, 1], where the tile was first touched. */
+        public float fraction;
+        /* World position of the ray or of the box origin at the time of the hit. */
+        public float x;
+        public float y;
+        /* Normal of the tile face that was hit, zero when the query started inside a tile. */
+        public float normalX;
+        public float normalY;
+        public int tileX;
+        public int tileY;
+        public TileLayerModel tileLayer;
+
+        public void reset() {
+            fraction = 1f;
+            x = y = 0f;
+            normalX = normalY = 0f;
+            tileX = tileY = -1;
+            tileLayer = null;
+        }
+
+        void set(TileLayerModel tileLayer, int tileX, int tileY, float fraction, float x, float y, float normalX, float normalY) {
+            this.tileLayer = tileLayer;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.fraction = fraction;
+            this.x = x;
+            this.y = y;
+            this.normalX = normalX;
+            this.normalY = normalY;
+        }
+
+    }
+
+}
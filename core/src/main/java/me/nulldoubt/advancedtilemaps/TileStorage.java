@@ -0,0 +1,181 @@
+package me.nulldoubt.advancedtilemaps;
+
+import java.util.Arrays;
+
+/*
+ * Occupancy bits and autotile indices of a TileLayer, split into CHUNK_SIZE x CHUNK_SIZE chunks.
+ * A chunk keeps one occupancy word per row (bit i being the tile at column i of the chunk) and its indices row-major.
+ * snapshot() freezes the current chunks in O(chunks); the next write to a frozen chunk copies it first, so a snapshot
+ * can be read from another thread while edits go on. Chunks written since a snapshot are no longer shared with it,
+ * which is how incremental saves find what changed.
+ * This is the plain Java implementation used on lwjgl3 and TeaVM (which compiles int[] and byte[] to typed arrays).
+ * The html module super-sources it with Int32Array / Int8Array, so keep the public API of both in sync.
+ */
+public final class TileStorage {
+
+    public static final int CHUNK_SIZE = 32;
+
+    private final int tilesX;
+    private final int tilesY;
+    private final int chunksX;
+    private final int chunksY;
+
+    private final Chunk[] chunks;
+    /* Bumped by every snapshot; chunks created in an older epoch are frozen. */
+    private int epoch;
+
+    public TileStorage(int tilesX, int tilesY) {
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        chunksX = (tilesX + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        chunksY = (tilesY + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        chunks = new Chunk[chunksX * chunksY];
+        for (int i = 0; i < chunks.length; i++)
+            chunks[i] = new Chunk(0);
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    /* One occupancy word per chunk column, so this equals the number of chunk columns. */
+    public int getWordsPerRow() {
+        return chunksX;
+    }
+
+    public int getChunksX() {
+        return chunksX;
+    }
+
+    public int getChunksY() {
+        return chunksY;
+    }
+
+    public boolean get(final int x, final int y) {
+        return (chunks[(y >>> 5) * chunksX + (x >>> 5)].words[y & 31] & (1 << (x & 31))) != 0;
+    }
+
+    /* Writes that don't change anything return early, so they don't copy a frozen chunk into the next save. */
+    public void set(final int x, final int y, final boolean state) {
+        final int chunk = (y >>> 5) * chunksX + (x >>> 5);
+        final int word = chunks[chunk].words[y & 31];
+        final int updated = state ? word | (1 << (x & 31)) : word & ~(1 << (x & 31));
+        if (updated != word)
+            writable(chunk, true).words[y & 31] = updated;
+    }
+
+    public int getWord(final int wordX, final int y) {
+        return chunks[(y >>> 5) * chunksX + wordX].words[y & 31];
+    }
+
+    public byte getIndex(final int x, final int y) {
+        return chunks[(y >>> 5) * chunksX + (x >>> 5)].indices[(y & 31) << 5 | (x & 31)];
+    }
+
+    public void setIndex(final int x, final int y, final byte index) {
+        final int chunk = (y >>> 5) * chunksX + (x >>> 5);
+        final int i = (y & 31) << 5 | (x & 31);
+        if (chunks[chunk].indices[i] != index)
+            writable(chunk, true).indices[i] = index;
+    }
+
+    public void fill(final boolean state, final byte index) {
+        final int tail = tilesX & 31;
+        for (int i = 0; i < chunks.length; i++) {
+            final Chunk chunk = writable(i, false);
+            Arrays.fill(chunk.indices, index);
+            Arrays.fill(chunk.words, 0);
+            if (!state)
+                continue;
+            final int word = (tail != 0 && i % chunksX == chunksX - 1) ? (1 << tail) - 1 : -1;
+            final int rows = Math.min(CHUNK_SIZE, tilesY - (i / chunksX) * CHUNK_SIZE);
+            Arrays.fill(chunk.words, 0, rows, word);
+        }
+    }
+
+    /* Freezes the current chunks; must be called on the thread that edits the layer. */
+    public Snapshot snapshot() {
+        epoch++;
+        return new Snapshot(this, chunks.clone());
+    }
+
+    private Chunk writable(final int index, final boolean copy) {
+        final Chunk chunk = chunks[index];
+        if (chunk.epoch == epoch)
+            return chunk;
+        final Chunk writable = new Chunk(epoch);
+        if (copy) {
+            System.arraycopy(chunk.words, 0, writable.words, 0, CHUNK_SIZE);
+            System.arraycopy(chunk.indices, 0, writable.indices, 0, CHUNK_SIZE * CHUNK_SIZE);
+        }
+        chunks[index] = writable;
+        return writable;
+    }
+
+    private static final class Chunk {
+
+        private final int[] words;
+        private final byte[] indices;
+        private final int epoch;
+
+        private Chunk(int epoch) {
+            this.epoch = epoch;
+            words = new int[CHUNK_SIZE];
+            indices = new byte[CHUNK_SIZE * CHUNK_SIZE];
+        }
+
+    }
+
+    /* Immutable occupancy of a TileStorage at the time of snapshot(); safe to read from any thread. */
+    public static final class Snapshot {
+
+        private final int tilesX;
+        private final int tilesY;
+        private final int chunksX;
+        private final int chunksY;
+        private final Chunk[] chunks;
+
+        private Snapshot(TileStorage storage, Chunk[] chunks) {
+            tilesX = storage.tilesX;
+            tilesY = storage.tilesY;
+            chunksX = storage.chunksX;
+            chunksY = storage.chunksY;
+            this.chunks = chunks;
+        }
+
+        public int getTilesX() {
+            return tilesX;
+        }
+
+        public int getTilesY() {
+            return tilesY;
+        }
+
+        public int getChunksX() {
+            return chunksX;
+        }
+
+        public int getChunksY() {
+            return chunksY;
+        }
+
+        public boolean get(final int x, final int y) {
+            return (chunks[(y >>> 5) * chunksX + (x >>> 5)].words[y & 31] & (1 << (x & 31))) != 0;
+        }
+
+        public int getWord(final int wordX, final int y) {
+            return chunks[(y >>> 5) * chunksX + wordX].words[y & 31];
+        }
+
+        /* Whether the chunk was written between the previous snapshot (of the same storage) and this one. */
+        public boolean isChunkChanged(final Snapshot previous, final int chunk) {
+            return chunks[chunk] != previous.chunks[chunk];
+        }
+
+    }
+
+}
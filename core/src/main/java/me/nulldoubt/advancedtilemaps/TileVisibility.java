@@ -0,0 +1,347 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+
+import java.util.Arrays;
+
+/*
+ * Field of view of any number of units against the occupancy of a wall layer, written into a fog layer of the same
+ * size whose tiles are filled wherever no unit sees. The fog layer is an ordinary layer, so rendering it as a
+ * TileLayer gives fog with the usual autotiled soft edges.
+ * Visibility is recursive shadowcasting over the eight octants, reading the wall storage directly; filled wall tiles
+ * block sight but are themselves visible. Every tile keeps the number of units seeing it, so update() only recasts
+ * units that moved, changed radius, or whose view square touches walls edited since the last update, and only
+ * rewrites the fog within their view squares.
+ */
+public class TileVisibility implements TileLayerModel.ChangeListener {
+
+    private static final int ACTIVE = 1;
+    private static final int DIRTY = 2;
+    /* Past this many pending wall edits they are merged into their bounding box. */
+    private static final int MAX_DIRTY_RECTS = 64;
+
+    /* Octant transforms, as (xx, xy, yx, yy) per octant. */
+    private static final int[] octants = {
+        1, 0, 0, 1, 0, 1, 1, 0, 0, -1, 1, 0, -1, 0, 0, 1,
+        -1, 0, 0, -1, 0, -1, -1, 0, 0, 1, -1, 0, 1, 0, 0, -1
+    };
+
+    private final TileLayerModel walls;
+    private final TileLayerModel fog;
+    private final int tilesX;
+    private final int tilesY;
+
+    /* Number of units seeing each tile, row-major. */
+    private final int[] counts;
+    /* Last cast that marked each tile, to skip tiles shared by two octants. */
+    private final int[] stamps;
+    private int stamp;
+
+    private final IntArray unitX;
+    private final IntArray unitY;
+    private final IntArray unitRadius;
+    private final IntArray unitFlags;
+    /* Tiles, as y * tilesX + x, each unit saw at its last cast, and the square they were cast over. */
+    private final Array<IntArray> unitTiles;
+    private final IntArray castSquares;
+    private final IntArray freeUnits;
+
+    /* Wall edits since the last update, as inclusive (x1, y1, x2, y2) rectangles. */
+    private final IntArray dirtyRects;
+    /* Fog squares to rewrite at the end of update(), same layout. */
+    private final IntArray fogRects;
+    private boolean[] cells;
+
+    private IntArray tiles;
+    private int originX;
+    private int originY;
+    private int radius;
+
+    public TileVisibility(TileLayerModel walls, TileLayerModel fog) {
+        if (walls.getTilesX() != fog.getTilesX() || walls.getTilesY() != fog.getTilesY())
+            throw new IllegalArgumentException("The fog layer must have the size of the wall layer.");
+        this.walls = walls;
+        this.fog = fog;
+        tilesX = walls.getTilesX();
+        tilesY = walls.getTilesY();
+
+        counts = new int[tilesX * tilesY];
+        stamps = new int[tilesX * tilesY];
+
+        unitX = new IntArray();
+        unitY = new IntArray();
+        unitRadius = new IntArray();
+        unitFlags = new IntArray();
+        unitTiles = new Array<>();
+        castSquares = new IntArray();
+        freeUnits = new IntArray();
+
+        dirtyRects = new IntArray();
+        fogRects = new IntArray();
+        cells = new boolean[0];
+
+        fog.fill(true);
+        walls.addChangeListener(this);
+    }
+
+    public TileLayerModel getWalls() {
+        return walls;
+    }
+
+    public TileLayerModel getFog() {
+        return fog;
+    }
+
+    /* Stops listening for wall edits; the visibility must not be updated afterwards. */
+    public void dispose() {
+        walls.removeChangeListener(this);
+    }
+
+    /* Returns the id of a new unit at tile (x, y) that sees radius tiles far. */
+    public int addUnit(int x, int y, int radius) {
+        final int unit;
+        if (freeUnits.size > 0) {
+            unit = freeUnits.pop();
+            unitX.set(unit, x);
+            unitY.set(unit, y);
+            unitRadius.set(unit, radius);
+            unitFlags.set(unit, ACTIVE | DIRTY);
+        } else {
+            unit = unitX.size;
+            unitX.add(x);
+            unitY.add(y);
+            unitRadius.add(radius);
+            unitFlags.add(ACTIVE | DIRTY);
+            unitTiles.add(new IntArray());
+            castSquares.addAll(0, 0, -1, -1);
+        }
+        return unit;
+    }
+
+    /* The unit's view is cleared on the next update(). */
+    public void removeUnit(int unit) {
+        if ((unitFlags.get(unit) & ACTIVE) == 0)
+            return;
+        unitFlags.set(unit, DIRTY);
+        freeUnits.add(unit);
+    }
+
+    public void moveUnit(int unit, int x, int y) {
+        if (unitX.get(unit) == x && unitY.get(unit) == y)
+            return;
+        unitX.set(unit, x);
+        unitY.set(unit, y);
+        unitFlags.set(unit, unitFlags.get(unit) | DIRTY);
+    }
+
+    public void setRadius(int unit, int radius) {
+        if (unitRadius.get(unit) == radius)
+            return;
+        unitRadius.set(unit, radius);
+        unitFlags.set(unit, unitFlags.get(unit) | DIRTY);
+    }
+
+    public int getUnitX(int unit) {
+        return unitX.get(unit);
+    }
+
+    public int getUnitY(int unit) {
+        return unitY.get(unit);
+    }
+
+    public int getRadius(int unit) {
+        return unitRadius.get(unit);
+    }
+
+    /* Whether any unit saw tile (x, y) at the last update. */
+    public boolean isVisible(int x, int y) {
+        if (walls.isOutOfBounds(x, y))
+            return false;
+        return counts[y * tilesX + x] > 0;
+    }
+
+    /* Number of units seeing tile (x, y) at the last update. */
+    public int getViewers(int x, int y) {
+        if (walls.isOutOfBounds(x, y))
+            return 0;
+        return counts[y * tilesX + x];
+    }
+
+    @Override
+    public void tilesChanged(TileLayerModel tileLayer, int x1, int y1, int x2, int y2) {
+        if (dirtyRects.size >= MAX_DIRTY_RECTS * 4) {
+            final int[] rects = dirtyRects.items;
+            for (int i = 4; i < dirtyRects.size; i += 4) {
+                rects[0] = Math.min(rects[0], rects[i]);
+                rects[1] = Math.min(rects[1], rects[i + 1]);
+                rects[2] = Math.max(rects[2], rects[i + 2]);
+                rects[3] = Math.max(rects[3], rects[i + 3]);
+            }
+            dirtyRects.size = 4;
+        }
+        dirtyRects.addAll(x1, y1, x2, y2);
+    }
+
+    /* Recasts the units that need it and rewrites the fog they affect; returns how many units were recast. */
+    public int update() {
+        final int units = unitX.size;
+        for (int unit = 0; unit < units; unit++)
+            if ((unitFlags.get(unit) & (ACTIVE | DIRTY)) == ACTIVE && touchesDirtyRect(unit))
+                unitFlags.set(unit, unitFlags.get(unit) | DIRTY);
+        dirtyRects.clear();
+
+        int recast = 0;
+        for (int unit = 0; unit < units; unit++) {
+            final int flags = unitFlags.get(unit);
+            if ((flags & DIRTY) == 0)
+                continue;
+            unitFlags.set(unit, flags & ~DIRTY);
+            recast++;
+
+            final IntArray tiles = unitTiles.get(unit);
+            for (int i = 0; i < tiles.size; i++)
+                counts[tiles.items[i]]--;
+            addFogRect(castSquares.get(unit * 4), castSquares.get(unit * 4 + 1), castSquares.get(unit * 4 + 2), castSquares.get(unit * 4 + 3));
+            tiles.clear();
+
+            if ((flags & ACTIVE) == 0) {
+                castSquares.set(unit * 4 + 2, -1);
+                continue;
+            }
+
+            final int x = unitX.get(unit);
+            final int y = unitY.get(unit);
+            final int r = unitRadius.get(unit);
+            cast(x, y, r, tiles);
+            for (int i = 0; i < tiles.size; i++)
+                counts[tiles.items[i]]++;
+            castSquares.set(unit * 4, x - r);
+            castSquares.set(unit * 4 + 1, y - r);
+            castSquares.set(unit * 4 + 2, x + r);
+            castSquares.set(unit * 4 + 3, y + r);
+            addFogRect(x - r, y - r, x + r, y + r);
+        }
+
+        writeFog();
+        return recast;
+    }
+
+    private boolean touchesDirtyRect(final int unit) {
+        final int x = unitX.get(unit);
+        final int y = unitY.get(unit);
+        final int r = unitRadius.get(unit);
+        final int[] rects = dirtyRects.items;
+        for (int i = 0; i < dirtyRects.size; i += 4)
+            if (x - r <= rects[i + 2] && x + r >= rects[i] && y - r <= rects[i + 3] && y + r >= rects[i + 1])
+                return true;
+        return false;
+    }
+
+    /* Clips the inclusive square to the layer and queues it, unless it repeats the last one queued. */
+    private void addFogRect(int x1, int y1, int x2, int y2) {
+        x1 = Math.max(0, x1);
+        y1 = Math.max(0, y1);
+        x2 = Math.min(tilesX - 1, x2);
+        y2 = Math.min(tilesY - 1, y2);
+        if (x1 > x2 || y1 > y2)
+            return;
+        final int n = fogRects.size;
+        if (n >= 4 && fogRects.get(n - 4) == x1 && fogRects.get(n - 3) == y1 && fogRects.get(n - 2) == x2 && fogRects.get(n - 1) == y2)
+            return;
+        fogRects.addAll(x1, y1, x2, y2);
+    }
+
+    private void writeFog() {
+        final int[] rects = fogRects.items;
+        for (int i = 0; i < fogRects.size; i += 4) {
+            final int x1 = rects[i];
+            final int y1 = rects[i + 1];
+            final int width = rects[i + 2] - x1 + 1;
+            final int height = rects[i + 3] - y1 + 1;
+            if (cells.length < width * height)
+                cells = new boolean[width * height];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    cells[y * width + x] = counts[(y1 + y) * tilesX + x1 + x] == 0;
+            fog.writeTiles(x1, y1, width, height, cells);
+            fog.rebuildIndices(x1, y1, x1 + width, y1 + height);
+            fog.notifyChanged(x1, y1, x1 + width - 1, y1 + height - 1);
+        }
+        fogRects.clear();
+    }
+
+    /* Writes the tiles visible from (x, y) within radius into tiles, each once. */
+    private void cast(final int x, final int y, final int radius, final IntArray tiles) {
+        this.tiles = tiles;
+        originX = x;
+        originY = y;
+        this.radius = radius;
+        if (++stamp == 0) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+        mark(x, y);
+        for (int i = 0; i < octants.length; i += 4)
+            castOctant(1, 1f, 0f, octants[i], octants[i + 1], octants[i + 2], octants[i + 3]);
+        this.tiles = null;
+    }
+
+    /* Scans rows row..radius of one octant between the start and end slopes, recursing below every wall run. */
+    private void castOctant(final int row, float start, final float end, final int xx, final int xy, final int yx, final int yy) {
+        if (start < end)
+            return;
+        final int radiusSquared = radius * radius;
+        float newStart = 0f;
+        for (int j = row; j <= radius; j++) {
+            boolean blocked = false;
+            final int dy = -j;
+            for (int dx = -j; dx <= 0; dx++) {
+                final float leftSlope = (dx - 0.5f) / (dy + 0.5f);
+                final float rightSlope = (dx + 0.5f) / (dy - 0.5f);
+                if (start < rightSlope)
+                    continue;
+                if (end > leftSlope)
+                    break;
+
+                final int x = originX + dx * xx + dy * xy;
+                final int y = originY + dx * yx + dy * yy;
+                if (dx * dx + dy * dy <= radiusSquared)
+                    mark(x, y);
+
+                final boolean wall = isWall(x, y);
+                if (blocked) {
+                    if (wall) {
+                        newStart = rightSlope;
+                        continue;
+                    }
+                    blocked = false;
+                    start = newStart;
+                } else if (wall && j < radius) {
+                    blocked = true;
+                    castOctant(j + 1, start, leftSlope, xx, xy, yx, yy);
+                    newStart = rightSlope;
+                }
+            }
+            if (blocked)
+                break;
+        }
+    }
+
+    private boolean isWall(final int x, final int y) {
+        if (x < 0 || y < 0 || x >= tilesX || y >= tilesY)
+            return true;
+        return walls.getStorage().get(x, y);
+    }
+
+    private void mark(final int x, final int y) {
+        if (x < 0 || y < 0 || x >= tilesX || y >= tilesY)
+            return;
+        final int tile = y * tilesX + x;
+        if (stamps[tile] == stamp)
+            return;
+        stamps[tile] = stamp;
+        tiles.add(tile);
+    }
+
+}
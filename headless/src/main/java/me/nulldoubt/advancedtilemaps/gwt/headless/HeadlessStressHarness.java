@@ -0,0 +1,186 @@
+package me.nulldoubt.advancedtilemaps.gwt.headless;
+
+import com.badlogic.gdx.math.RandomXS128;
+import me.nulldoubt.advancedtilemaps.TileLayerModel;
+import me.nulldoubt.advancedtilemaps.TileQueries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures edit and query throughput of many TileLayerModels in a plain JVM, the way a game server holds them.
+ * Every layer is owned by one worker, so the run scales with the thread count up to the number of cores.
+ * Usage: ./gradlew headless:run --args="layers=2000 size=128 threads=8 seconds=3"
+ */
+public class HeadlessStressHarness {
+
+    /* Operations of each kind done on a layer before moving on to the next one. */
+    private static final int EDITS_PER_VISIT = 64;
+    private static final int RAYCASTS_PER_VISIT = 16;
+    private static final int OVERLAPS_PER_VISIT = 16;
+    private static final int COUNTS_PER_VISIT = 4;
+
+    public static void main(String[] args) throws Exception {
+        int layerCount = 1000;
+        int size = 128;
+        int threads = Runtime.getRuntime().availableProcessors();
+        float seconds = 2f;
+        float density = 0.4f;
+        for (final String arg : args) {
+            final String[] pair = arg.split("=", 2);
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            switch (pair[0]) {
+                case "layers":
+                    layerCount = Integer.parseInt(pair[1]);
+                    break;
+                case "size":
+                    size = Integer.parseInt(pair[1]);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(pair[1]);
+                    break;
+                case "seconds":
+                    seconds = Float.parseFloat(pair[1]);
+                    break;
+                case "density":
+                    density = Float.parseFloat(pair[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + pair[0]);
+            }
+        }
+
+        threads = Math.max(1, Math.min(threads, layerCount));
+
+        System.out.printf("%d layers of %dx%d tiles, density %.2f, up to %d threads, %.1fs per run%n", layerCount, size, size, density, threads, seconds);
+        final long start = System.nanoTime();
+        final TileLayerModel[] layers = createLayers(layerCount, size, density);
+        System.out.printf("Created layers in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            /* Warm up the JIT before measuring. */
+            run(executor, layers, threads, seconds / 2f);
+
+            System.out.printf("%8s %14s %14s %9s%n", "threads", "edits/s", "queries/s", "speedup");
+            double baseline = 0;
+            for (int count = 1; count <= threads; count = (count == threads) ? count + 1 : Math.min(threads, count * 2)) {
+                final long[] result = run(executor, layers, count, seconds);
+                final double nanos = result[2];
+                final double edits = result[0] * 1e9 / nanos;
+                final double queries = result[1] * 1e9 / nanos;
+                if (count == 1)
+                    baseline = edits + queries;
+                System.out.printf("%8d %14.0f %14.0f %8.2fx%n", count, edits, queries, (edits + queries) / baseline);
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static TileLayerModel[] createLayers(final int count, final int size, final float density) {
+        final RandomXS128 random = new RandomXS128(1);
+        final boolean[] cells = new boolean[size * size];
+        final TileLayerModel[] layers = new TileLayerModel[count];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < cells.length; j++)
+                cells[j] = random.nextFloat() < density;
+            final TileLayerModel layer = new TileLayerModel(size, size, 16f, 16f, 1f / 16f, false);
+            layer.writeTiles(0, 0, size, size, cells);
+            layer.rebuildIndices(0, 0, size - 1, size - 1);
+            layers[i] = layer;
+        }
+        return layers;
+    }
+
+    /* Returns the edits and queries of all workers and the longest time one of them ran, in nanoseconds. */
+    private static long[] run(final ExecutorService executor, final TileLayerModel[] layers, final int threads, final float seconds) throws Exception {
+        final long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        final List<Future<long[]>> futures = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++)
+            futures.add(executor.submit(new Worker(layers, i, threads, deadline)));
+        final long[] total = new long[3];
+        for (final Future<long[]> future : futures) {
+            final long[] result = future.get();
+            total[0] += result[0];
+            total[1] += result[1];
+            total[2] = Math.max(total[2], result[2]);
+        }
+        return total;
+    }
+
+    private static final class Worker implements Callable<long[]> {
+
+        private final TileLayerModel[] layers;
+        private final int first;
+        private final int stride;
+        private final long deadline;
+
+        private final RandomXS128 random;
+        private final TileQueries.Hit hit;
+
+        private Worker(TileLayerModel[] layers, int first, int stride, long deadline) {
+            this.layers = layers;
+            this.first = first;
+            this.stride = stride;
+            this.deadline = deadline;
+            random = new RandomXS128(first + 1);
+            hit = new TileQueries.Hit();
+        }
+
+        @Override
+        public long[] call() {
+            final long start = System.nanoTime();
+            long edits = 0;
+            long queries = 0;
+            long hits = 0;
+            int index = first;
+            while (System.nanoTime() < deadline) {
+                final TileLayerModel layer = layers[index];
+                final int tilesX = layer.getTilesX();
+                final int tilesY = layer.getTilesY();
+                final float width = layer.tileToWorldX(tilesX) - layer.tileToWorldX(0);
+                final float height = layer.tileToWorldY(tilesY) - layer.tileToWorldY(0);
+                final float x0 = layer.tileToWorldX(0);
+                final float y0 = layer.tileToWorldY(0);
+
+                for (int i = 0; i < EDITS_PER_VISIT; i++)
+                    layer.tileAt(random.nextInt(tilesX), random.nextInt(tilesY), random.nextBoolean());
+                edits += EDITS_PER_VISIT;
+
+                for (int i = 0; i < RAYCASTS_PER_VISIT; i++) {
+                    final float x1 = x0 + random.nextFloat() * width;
+                    final float y1 = y0 + random.nextFloat() * height;
+                    if (TileQueries.raycast(layer, x1, y1, x1 + (random.nextFloat() - 0.5f) * width, y1 + (random.nextFloat() - 0.5f) * height, hit))
+                        hits++;
+                }
+                for (int i = 0; i < OVERLAPS_PER_VISIT; i++)
+                    if (TileQueries.overlaps(layer, x0 + random.nextFloat() * width, y0 + random.nextFloat() * height, 1.5f, 1.5f))
+                        hits++;
+                for (int i = 0; i < COUNTS_PER_VISIT; i++) {
+                    final int col = random.nextInt(tilesX);
+                    final int row = random.nextInt(tilesY);
+                    hits += TileQueries.countFilled(layer, col, row, Math.min(tilesX - 1, col + 31), Math.min(tilesY - 1, row + 31), false);
+                }
+                queries += RAYCASTS_PER_VISIT + OVERLAPS_PER_VISIT + COUNTS_PER_VISIT;
+
+                index += stride;
+                if (index >= layers.length)
+                    index = first;
+            }
+            /* Keeps the query results alive so the JIT can't drop the queries. */
+            if (hits == Long.MIN_VALUE)
+                System.out.println(hits);
+            return new long[]{edits, queries, System.nanoTime() - start};
+        }
+
+    }
+
+}
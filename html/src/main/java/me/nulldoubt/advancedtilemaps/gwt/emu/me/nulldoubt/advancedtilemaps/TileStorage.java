@@ -0,0 +1,175 @@
+package me.nulldoubt.advancedtilemaps;
+
+import com.google.gwt.typedarrays.shared.Int32Array;
+import com.google.gwt.typedarrays.shared.Int8Array;
+import com.google.gwt.typedarrays.shared.TypedArrays;
+
+/*
+ * GWT replacement of core's TileStorage. GWT compiles int[] and byte[] to plain JS arrays of numbers, so each chunk
+ * keeps its occupancy words and indices in an Int32Array and an Int8Array instead, which are packed, zero
+ * initialized and copied natively on copy-on-write. The public API must stay identical to the core class.
+ */
+public final class TileStorage {
+
+    public static final int CHUNK_SIZE = 32;
+
+    private final int tilesX;
+    private final int tilesY;
+    private final int chunksX;
+    private final int chunksY;
+
+    private final Chunk[] chunks;
+    private int epoch;
+
+    public TileStorage(int tilesX, int tilesY) {
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        chunksX = (tilesX + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        chunksY = (tilesY + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        chunks = new Chunk[chunksX * chunksY];
+        for (int i = 0; i < chunks.length; i++)
+            chunks[i] = new Chunk(0);
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public int getWordsPerRow() {
+        return chunksX;
+    }
+
+    public int getChunksX() {
+        return chunksX;
+    }
+
+    public int getChunksY() {
+        return chunksY;
+    }
+
+    public boolean get(final int x, final int y) {
+        return (chunks[(y >>> 5) * chunksX + (x >>> 5)].words.get(y & 31) & (1 << (x & 31))) != 0;
+    }
+
+    /* Writes that don't change anything return early, so they don't copy a frozen chunk into the next save. */
+    public void set(final int x, final int y, final boolean state) {
+        final int chunk = (y >>> 5) * chunksX + (x >>> 5);
+        final int word = chunks[chunk].words.get(y & 31);
+        final int updated = state ? word | (1 << (x & 31)) : word & ~(1 << (x & 31));
+        if (updated != word)
+            writable(chunk, true).words.set(y & 31, updated);
+    }
+
+    public int getWord(final int wordX, final int y) {
+        return chunks[(y >>> 5) * chunksX + wordX].words.get(y & 31);
+    }
+
+    public byte getIndex(final int x, final int y) {
+        return chunks[(y >>> 5) * chunksX + (x >>> 5)].indices.get((y & 31) << 5 | (x & 31));
+    }
+
+    public void setIndex(final int x, final int y, final byte index) {
+        final int chunk = (y >>> 5) * chunksX + (x >>> 5);
+        final int i = (y & 31) << 5 | (x & 31);
+        if (chunks[chunk].indices.get(i) != index)
+            writable(chunk, true).indices.set(i, index);
+    }
+
+    public void fill(final boolean state, final byte index) {
+        final int tail = tilesX & 31;
+        for (int i = 0; i < chunks.length; i++) {
+            final Chunk chunk = writable(i, false);
+            for (int j = 0; j < CHUNK_SIZE * CHUNK_SIZE; j++)
+                chunk.indices.set(j, index);
+            final int word = (tail != 0 && i % chunksX == chunksX - 1) ? (1 << tail) - 1 : -1;
+            final int rows = Math.min(CHUNK_SIZE, tilesY - (i / chunksX) * CHUNK_SIZE);
+            for (int j = 0; j < CHUNK_SIZE; j++)
+                chunk.words.set(j, (state && j < rows) ? word : 0);
+        }
+    }
+
+    public Snapshot snapshot() {
+        epoch++;
+        final Chunk[] frozen = new Chunk[chunks.length];
+        System.arraycopy(chunks, 0, frozen, 0, chunks.length);
+        return new Snapshot(this, frozen);
+    }
+
+    private Chunk writable(final int index, final boolean copy) {
+        final Chunk chunk = chunks[index];
+        if (chunk.epoch == epoch)
+            return chunk;
+        final Chunk writable = new Chunk(epoch);
+        if (copy) {
+            writable.words.set(chunk.words);
+            writable.indices.set(chunk.indices);
+        }
+        chunks[index] = writable;
+        return writable;
+    }
+
+    private static final class Chunk {
+
+        private final Int32Array words;
+        private final Int8Array indices;
+        private final int epoch;
+
+        private Chunk(int epoch) {
+            this.epoch = epoch;
+            words = TypedArrays.createInt32Array(CHUNK_SIZE);
+            indices = TypedArrays.createInt8Array(CHUNK_SIZE * CHUNK_SIZE);
+        }
+
+    }
+
+    public static final class Snapshot {
+
+        private final int tilesX;
+        private final int tilesY;
+        private final int chunksX;
+        private final int chunksY;
+        private final Chunk[] chunks;
+
+        private Snapshot(TileStorage storage, Chunk[] chunks) {
+            tilesX = storage.tilesX;
+            tilesY = storage.tilesY;
+            chunksX = storage.chunksX;
+            chunksY = storage.chunksY;
+            this.chunks = chunks;
+        }
+
+        public int getTilesX() {
+            return tilesX;
+        }
+
+        public int getTilesY() {
+            return tilesY;
+        }
+
+        public int getChunksX() {
+            return chunksX;
+        }
+
+        public int getChunksY() {
+            return chunksY;
+        }
+
+        public boolean get(final int x, final int y) {
+            return (chunks[(y >>> 5) * chunksX + (x >>> 5)].words.get(y & 31) & (1 << (x & 31))) != 0;
+        }
+
+        public int getWord(final int wordX, final int y) {
+            return chunks[(y >>> 5) * chunksX + wordX].words.get(y & 31);
+        }
+
+        public boolean isChunkChanged(final Snapshot previous, final int chunk) {
+            return chunks[chunk] != previous.chunks[chunk];
+        }
+
+    }
+
+}
@@ -8,13 +8,28 @@ import me.nulldoubt.advancedtilemaps.gwt.GwtAdvTilemaps;
 public class Lwjgl3Launcher {
     public static void main(String[] args) {
         if (StartupHelper.startNewJvmIfRequired()) return; // This handles macOS support and helps on Windows.
-        createApplication();
+        if (args.length > 0 && args[0].equals("stress"))
+            createStressApplication(StressScene.Config.parse(args, 1));
+        else
+            createApplication();
     }
 
     private static Lwjgl3Application createApplication() {
         return new Lwjgl3Application(new GwtAdvTilemaps(), getDefaultConfiguration());
     }
 
+    /** Runs {@link StressScene} uncapped, so the report measures the frame and not the display. */
+    private static Lwjgl3Application createStressApplication(StressScene.Config config) {
+        final Lwjgl3ApplicationConfiguration configuration = getDefaultConfiguration();
+        configuration.setTitle("GWT-AdvTilemaps stress");
+        configuration.useVsync(false);
+        configuration.setForegroundFPS(0);
+        configuration.setIdleFPS(0);
+        configuration.setWindowedMode(config.width, config.height);
+        configuration.setResizable(false);
+        return new Lwjgl3Application(new StressScene(config), configuration);
+    }
+
     private static Lwjgl3ApplicationConfiguration getDefaultConfiguration() {
         Lwjgl3ApplicationConfiguration configuration = new Lwjgl3ApplicationConfiguration();
         configuration.setTitle("GWT-AdvTilemaps");
@@ -0,0 +1,490 @@
+package me.nulldoubt.advancedtilemaps.gwt.lwjgl3;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.g2d.TextureRegion;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.graphics.profiling.GLProfiler;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.RandomXS128;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ScreenUtils;
+import com.badlogic.gdx.utils.TimeUtils;
+import com.badlogic.gdx.utils.viewport.FitViewport;
+import com.badlogic.gdx.utils.viewport.Viewport;
+import me.nulldoubt.advancedtilemaps.TileBatch;
+import me.nulldoubt.advancedtilemaps.TileGenerator;
+import me.nulldoubt.advancedtilemaps.TileGeometry;
+import me.nulldoubt.advancedtilemaps.TileLayer;
+import me.nulldoubt.advancedtilemaps.TileLayerCache;
+import me.nulldoubt.advancedtilemaps.TileLayerLod;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Soak test for many large layers: fills them with noise, then flies the camera along a fixed path while editing tiles
+ * at a fixed rate. The flight and edits advance by a fixed 1/60 s per frame and are seeded, so every run draws the
+ * same views and makes the same edits, which makes reports of different builds and strategies comparable.
+ * Records frame time, wall and CPU time of render() on the render thread, GC pauses and counts, bytes allocated on
+ * the render thread and GL calls per frame, then writes them to a CSV report with the configuration and a summary as # comment lines, and exits.
+ * Start with {@code ./gradlew lwjgl3:run --args="stress map=1024 layers=6 strategy=LOD"}; see {@link Config}.
+ */
+public class StressScene extends ApplicationAdapter {
+
+    private static final float STEP = 1f / 60f;
+
+    private final Config config;
+
+    private Texture[] tileSets;
+    private Texture[] overlays;
+    private ShaderProgram shader;
+    private final Array<TileLayer> layers;
+    private final Array<TileLayerLod> lods;
+    private TileLayerCache cache;
+    private TileGeometry geometry;
+    private ExecutorService executor;
+
+    private SpriteBatch spriteBatch;
+    private TileBatch tileBatch;
+    private Viewport viewport;
+    private OrthographicCamera camera;
+    private GLProfiler profiler;
+    private RandomXS128 random;
+
+    private GarbageCollectorMXBean[] collectors;
+    private com.sun.management.ThreadMXBean threads;
+    private long threadId;
+    private ThreadMXBean cpuTimes;
+
+    private int warmupFrames;
+    private int frame;
+    private float pendingEdits;
+    private long lastFrameStart;
+    private long lastGcCount;
+    private long lastGcMillis;
+    private long lastAllocated;
+
+    private float[] frameMillis;
+    private float[] renderMillis;
+    private float[] cpuMillis;
+    private int[] gcCounts;
+    private int[] gcMillis;
+    private long[] allocated;
+    private int[] drawCalls;
+    private int[] batchCalls;
+    private int[] textureBindings;
+    private int[] shaderSwitches;
+    private int[] quads;
+
+    public StressScene(Config config) {
+        this.config = config;
+        layers = new Array<>();
+        lods = new Array<>();
+    }
+
+    @Override
+    public void create() {
+        tileSets = new Texture[]{new Texture("Dirt.png"), new Texture("Grass.png")};
+        overlays = new Texture[]{new Texture("DirtOverlay.png"), new Texture("GrassOverlay.png")};
+        for (final Texture overlay : overlays) {
+            overlay.setFilter(Texture.TextureFilter.Nearest, Texture.TextureFilter.Nearest);
+            overlay.setWrap(Texture.TextureWrap.Repeat, Texture.TextureWrap.Repeat);
+        }
+        shader = new ShaderProgram(
+            Gdx.files.internal("shaders/overlay.vert").readString(),
+            Gdx.files.internal("shaders/overlay.frag").readString()
+        );
+        if (!shader.isCompiled())
+            throw new RuntimeException("Unable to compile shader: " + shader.getLog());
+
+        final boolean useCache = config.strategy.equals("CACHE");
+        final boolean useLod = config.strategy.equals("LOD");
+        final boolean useGeometry = config.strategy.equals("GEOMETRY");
+        final TileLayer.RenderStrategy strategy;
+        if (useGeometry)
+            strategy = geometry = new TileGeometry();
+        else if (useCache || useLod)
+            strategy = TileLayer.getDefaultRenderStrategy();
+        else
+            strategy = TileLayer.IntegratedStrategy.valueOf(config.strategy);
+
+        final long start = TimeUtils.millis();
+        final int workers = Runtime.getRuntime().availableProcessors();
+        executor = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < config.layers; i++) {
+            final TileLayer layer = new TileLayer(config.map, config.map, 16f, 16f, 1f / 16f, i == 0);
+            layer.setTileSet(new TextureRegion(tileSets[i % 2]));
+            layer.setOverlay(overlays[i % 2], shader);
+            layer.setRenderStrategy(strategy);
+            if (i > 0)
+                generate(layer, i, executor, workers);
+            if (useLod) {
+                final TileLayerLod lod = new TileLayerLod(layer, 8, (i % 2 == 0) ? Color.BROWN : Color.FOREST);
+                layer.setRenderStrategy(lod);
+                lods.add(lod);
+            }
+            layers.add(layer);
+        }
+        Gdx.app.log("StressScene", config.layers + " layers of " + config.map + "x" + config.map + " generated in " + TimeUtils.timeSinceMillis(start) + " ms");
+
+        if (useGeometry) {
+            geometry.setExecutor(executor, workers);
+            for (final TileLayer layer : layers)
+                geometry.addTileLayer(layer);
+        }
+        if (useCache) {
+            cache = new TileLayerCache();
+            for (final TileLayer layer : layers)
+                cache.addTileLayer(layer);
+        }
+        /* TileBatch can't draw the cache or LOD textures. */
+        if ((config.batch.equals("tile") && !useCache && !useLod) || useGeometry)
+            tileBatch = new TileBatch(8191);
+        else
+            spriteBatch = new SpriteBatch(8191);
+        /* So the report names the batch that was actually used. */
+        config.batch = (tileBatch != null) ? "tile" : "sprite";
+
+        viewport = new FitViewport(40f, 22.5f);
+        camera = (OrthographicCamera) viewport.getCamera();
+        profiler = new GLProfiler(Gdx.graphics);
+        profiler.enable();
+        random = new RandomXS128(config.seed);
+
+        final List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+        collectors = beans.toArray(new GarbageCollectorMXBean[0]);
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+            threads = (com.sun.management.ThreadMXBean) threadBean;
+            threads.setThreadAllocatedMemoryEnabled(true);
+            threadId = Thread.currentThread().getId();
+        }
+        if (threadBean.isCurrentThreadCpuTimeSupported()) {
+            cpuTimes = threadBean;
+            cpuTimes.setThreadCpuTimeEnabled(true);
+        }
+
+        final int frames = Math.round(config.duration / STEP);
+        frameMillis = new float[frames];
+        renderMillis = new float[frames];
+        cpuMillis = new float[frames];
+        gcCounts = new int[frames];
+        gcMillis = new int[frames];
+        allocated = new long[frames];
+        drawCalls = new int[frames];
+        batchCalls = new int[frames];
+        textureBindings = new int[frames];
+        shaderSwitches = new int[frames];
+        quads = new int[frames];
+
+        warmupFrames = Math.round(config.warmup / STEP);
+        frame = -warmupFrames;
+    }
+
+    private void generate(final TileLayer layer, final int index, final ExecutorService executor, final int workers) {
+        final float density = config.density;
+        final int seed = config.seed * 31 + index;
+        final TileGenerator generator = new TileGenerator(layer, 64, new TileGenerator.CellFunction() {
+            @Override
+            public boolean generate(int x, int y) {
+                /* Value noise over 8 tile cells, so the layer has blobs and edges rather than speckle. */
+                final float fx = x / 8f, fy = y / 8f;
+                final int x0 = (int) fx, y0 = (int) fy;
+                final float tx = fx - x0, ty = fy - y0;
+                final float top = MathUtils.lerp(hash(x0, y0 + 1, seed), hash(x0 + 1, y0 + 1, seed), tx);
+                final float bottom = MathUtils.lerp(hash(x0, y0, seed), hash(x0 + 1, y0, seed), tx);
+                return MathUtils.lerp(bottom, top, ty) < density;
+            }
+        });
+        generator.start(executor, workers);
+        while (!generator.update(0f))
+            Thread.yield();
+    }
+
+    private static float hash(int x, int y, int seed) {
+        int h = x * 374761393 + y * 668265263 + seed * 1442695041;
+        h = (h ^ (h >>> 13)) * 1274126177;
+        return ((h ^ (h >>> 16)) & 0xFFFFFF) / (float) 0x1000000;
+    }
+
+    @Override
+    public void render() {
+        final long frameStart = TimeUtils.nanoTime();
+        final long cpuStart = (cpuTimes != null) ? cpuTimes.getCurrentThreadCpuTime() : 0L;
+
+        fly();
+        edit();
+
+        ScreenUtils.clear(Color.BLACK);
+        viewport.apply();
+        int batchRenderCalls;
+        if (cache != null) {
+            final int before = spriteBatch.totalRenderCalls;
+            spriteBatch.setProjectionMatrix(camera.combined);
+            cache.render(spriteBatch, viewport);
+            batchRenderCalls = spriteBatch.totalRenderCalls - before;
+        } else if (tileBatch != null) {
+            final int before = tileBatch.totalRenderCalls;
+            tileBatch.setProjectionMatrix(camera.combined);
+            for (final TileLayer layer : layers)
+                layer.setView(camera);
+            if (geometry != null)
+                geometry.build();
+            tileBatch.begin();
+            for (final TileLayer layer : layers)
+                layer.render(tileBatch);
+            tileBatch.end();
+            batchRenderCalls = tileBatch.totalRenderCalls - before;
+        } else {
+            final int before = spriteBatch.totalRenderCalls;
+            spriteBatch.setProjectionMatrix(camera.combined);
+            spriteBatch.begin();
+            for (final TileLayer layer : layers) {
+                layer.setView(camera);
+                layer.render(spriteBatch);
+            }
+            spriteBatch.end();
+            batchRenderCalls = spriteBatch.totalRenderCalls - before;
+        }
+
+        record(frameStart, cpuStart, batchRenderCalls);
+        frame++;
+        if (frame == frameMillis.length) {
+            report();
+            Gdx.app.exit();
+        }
+    }
+
+    /*
+     * Lissajous path over the middle of the map, zooming out and back in exponentially once per flight. Warmup frames
+     * fly its first warmup seconds, then the recorded flight starts over from the beginning.
+     */
+    private void fly() {
+        final float t = ((frame < 0) ? frame + warmupFrames : frame) * STEP / config.duration;
+        final TileLayer layer = layers.first();
+        final float x1 = layer.tileToWorldX(0), x2 = layer.tileToWorldX(layer.getTilesX());
+        final float y1 = layer.tileToWorldY(0), y2 = layer.tileToWorldY(layer.getTilesY());
+        camera.position.set(
+            (x1 + x2) / 2f + (x2 - x1) * 0.35f * MathUtils.sin(MathUtils.PI2 * t),
+            (y1 + y2) / 2f + (y2 - y1) * 0.35f * MathUtils.sin(MathUtils.PI2 * 2f * t),
+            0f
+        );
+        final float zoom = 0.5f - 0.5f * MathUtils.cos(MathUtils.PI2 * t);
+        camera.zoom = config.zoomMin * (float) Math.pow(config.zoomMax / config.zoomMin, zoom);
+        camera.update();
+    }
+
+    /* Toggles tiles of the top layers inside the view, editRate per simulated second. */
+    private void edit() {
+        if (layers.size < 2)
+            return;
+        pendingEdits += config.editRate * STEP;
+        final TileLayer first = layers.first();
+        final float width = camera.viewportWidth * camera.zoom, height = camera.viewportHeight * camera.zoom;
+        final int col1 = MathUtils.floor(first.worldToTileX(camera.position.x - width / 2f));
+        final int row1 = MathUtils.floor(first.worldToTileY(camera.position.y - height / 2f));
+        final int cols = Math.max(1, MathUtils.ceil(width / (first.getTileWidth() * first.getUnitScale())));
+        final int rows = Math.max(1, MathUtils.ceil(height / (first.getTileHeight() * first.getUnitScale())));
+        while (pendingEdits >= 1f) {
+            pendingEdits--;
+            final TileLayer layer = layers.get(1 + random.nextInt(layers.size - 1));
+            layer.tileAt(col1 + random.nextInt(cols), row1 + random.nextInt(rows), random.nextBoolean());
+        }
+    }
+
+    private void record(final long frameStart, final long cpuStart, final int batchRenderCalls) {
+        final long now = TimeUtils.nanoTime();
+        final long cpuNow = (cpuTimes != null) ? cpuTimes.getCurrentThreadCpuTime() : 0L;
+        long gcCount = 0, gcTime = 0;
+        for (final GarbageCollectorMXBean collector : collectors) {
+            gcCount += Math.max(0, collector.getCollectionCount());
+            gcTime += Math.max(0, collector.getCollectionTime());
+        }
+        final long allocatedBytes = (threads != null) ? threads.getThreadAllocatedBytes(threadId) : 0L;
+
+        if (frame >= 0) {
+            frameMillis[frame] = (lastFrameStart == 0) ? 0f : (frameStart - lastFrameStart) / 1e6f;
+            renderMillis[frame] = (now - frameStart) / 1e6f;
+            cpuMillis[frame] = (cpuNow - cpuStart) / 1e6f;
+            gcCounts[frame] = (int) (gcCount - lastGcCount);
+            gcMillis[frame] = (int) (gcTime - lastGcMillis);
+            allocated[frame] = allocatedBytes - lastAllocated;
+            drawCalls[frame] = profiler.getDrawCalls();
+            batchCalls[frame] = batchRenderCalls;
+            textureBindings[frame] = profiler.getTextureBindings();
+            shaderSwitches[frame] = profiler.getShaderSwitches();
+            int quadCount = 0;
+            for (final TileLayer layer : layers)
+                quadCount += layer.getQuadsRendered();
+            quads[frame] = quadCount;
+        }
+
+        lastFrameStart = frameStart;
+        lastGcCount = gcCount;
+        lastGcMillis = gcTime;
+        lastAllocated = allocatedBytes;
+        profiler.reset();
+    }
+
+    private void report() {
+        /* Without warmup the first recorded frame has no previous frame to measure against. */
+        final int first = (warmupFrames == 0) ? 1 : 0;
+        final float[] sorted = Arrays.copyOfRange(frameMillis, first, frameMillis.length);
+        Arrays.sort(sorted);
+        double frameSum = 0, renderSum = 0, cpuSum = 0, allocatedSum = 0, drawSum = 0, batchSum = 0;
+        int gcTotal = 0, gcTimeTotal = 0;
+        for (int i = 0; i < frameMillis.length; i++) {
+            frameSum += frameMillis[i];
+            renderSum += renderMillis[i];
+            cpuSum += cpuMillis[i];
+            allocatedSum += allocated[i];
+            drawSum += drawCalls[i];
+            batchSum += batchCalls[i];
+            gcTotal += gcCounts[i];
+            gcTimeTotal += gcMillis[i];
+        }
+        final int frames = frameMillis.length;
+        final double seconds = frameSum / 1000.0;
+
+        final StringBuilder report = new StringBuilder();
+        report.append("# config ").append(config).append('\n');
+        report.append("# java ").append(System.getProperty("java.version")).append(", ").append(Runtime.getRuntime().availableProcessors()).append(" cores")
+            .append(", gl ").append(Gdx.graphics.getGLVersion().getRendererString()).append('\n');
+        report.append(String.format(Locale.ROOT, "# frame ms: avg %.3f p50 %.3f p95 %.3f p99 %.3f max %.3f%n",
+            frameSum / sorted.length, percentile(sorted, 0.5f), percentile(sorted, 0.95f), percentile(sorted, 0.99f), sorted[sorted.length - 1]));
+        report.append(String.format(Locale.ROOT, "# render ms: avg %.3f wall, %.3f cpu%s%n", renderSum / frames, cpuSum / frames,
+            (cpuTimes != null) ? "" : " (thread cpu time not supported)"));
+        report.append(String.format(Locale.ROOT, "# gc: %d collections, %d ms paused%n", gcTotal, gcTimeTotal));
+        report.append(String.format(Locale.ROOT, "# allocation: %.1f KB per frame, %.2f MB/s%n", allocatedSum / frames / 1024.0, allocatedSum / seconds / (1024.0 * 1024.0)));
+        report.append(String.format(Locale.ROOT, "# render calls: %.1f draw calls, %.1f batch flushes per frame%n", drawSum / frames, batchSum / frames));
+        report.append("frame,frame_ms,render_ms,cpu_ms,gc_count,gc_ms,allocated_bytes,draw_calls,batch_calls,texture_bindings,shader_switches,quads\n");
+        for (int i = 0; i < frames; i++)
+            report.append(i).append(',')
+                .append(String.format(Locale.ROOT, "%.3f,%.3f,%.3f", frameMillis[i], renderMillis[i], cpuMillis[i])).append(',')
+                .append(gcCounts[i]).append(',')
+                .append(gcMillis[i]).append(',')
+                .append(allocated[i]).append(',')
+                .append(drawCalls[i]).append(',')
+                .append(batchCalls[i]).append(',')
+                .append(textureBindings[i]).append(',')
+                .append(shaderSwitches[i]).append(',')
+                .append(quads[i]).append('\n');
+
+        Gdx.files.local(config.report).writeString(report.toString(), false);
+        final int summaryEnd = report.indexOf("frame,");
+        Gdx.app.log("StressScene", "Report written to " + Gdx.files.local(config.report).file().getAbsolutePath() + "\n" + report.substring(0, summaryEnd));
+    }
+
+    private static float percentile(final float[] sorted, final float percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (percentile * sorted.length))];
+    }
+
+    @Override
+    public void resize(int width, int height) {
+        viewport.update(width, height, true);
+    }
+
+    @Override
+    public void dispose() {
+        for (final TileLayerLod lod : lods)
+            lod.dispose();
+        if (cache != null)
+            cache.dispose();
+        if (spriteBatch != null)
+            spriteBatch.dispose();
+        if (tileBatch != null)
+            tileBatch.dispose();
+        for (final Texture texture : tileSets)
+            texture.dispose();
+        for (final Texture texture : overlays)
+            texture.dispose();
+        shader.dispose();
+        profiler.disable();
+        executor.shutdown();
+    }
+
+    /** Scenario parameters, given to the launcher as key=value arguments after "stress". */
+    public static class Config {
+
+        /** Width and height of every layer in tiles. */
+        public int map = 512;
+        /** Number of layers; the first one is filled, the others get noise. */
+        public int layers = 4;
+        /** Fraction of filled tiles in the noise layers. */
+        public float density = 0.5f;
+        /** Tiles toggled per simulated second, inside the view. */
+        public float editRate = 600f;
+        /** Length of the recorded camera flight in simulated seconds, at 60 frames per second. */
+        public float duration = 30f;
+        /** Flight rendered before recording, in simulated seconds; the recorded flight then starts over from its beginning. */
+        public float warmup = 3f;
+        /** Camera zoom range of the flight; at the far end the whole map is in view and TileLayerLod blends in. */
+        public float zoomMin = 0.25f;
+        public float zoomMax = 20f;
+        /**
+         * An IntegratedStrategy name, LOD (TileLayerLod over the default strategy), CACHE (TileLayerCache) or GEOMETRY
+         * (TileGeometry built on one worker per core, always with TileBatch).
+         */
+        public String strategy = TileLayer.IntegratedStrategy.nameOf(TileLayer.getDefaultRenderStrategy());
+        /** sprite for SpriteBatch, tile for TileBatch; CACHE and LOD always use SpriteBatch, GEOMETRY TileBatch. */
+        public String batch = "sprite";
+        public int seed = 1;
+        public int width = 1280;
+        public int height = 720;
+        /** Report file, relative to the working directory. */
+        public String report = "stress-report.csv";
+
+        public static Config parse(String[] args, int from) {
+            final Config config = new Config();
+            for (int i = from; i < args.length; i++) {
+                final String[] pair = args[i].split("=", 2);
+                if (pair.length != 2)
+                    throw new IllegalArgumentException("Expected key=value: " + args[i]);
+                final String value = pair[1];
+                switch (pair[0]) {
+                    case "map": config.map = Integer.parseInt(value); break;
+                    case "layers": config.layers = Integer.parseInt(value); break;
+                    case "density": config.density = Float.parseFloat(value); break;
+                    case "editRate": config.editRate = Float.parseFloat(value); break;
+                    case "duration": config.duration = Float.parseFloat(value); break;
+                    case "warmup": config.warmup = Float.parseFloat(value); break;
+                    case "zoomMin": config.zoomMin = Float.parseFloat(value); break;
+                    case "zoomMax": config.zoomMax = Float.parseFloat(value); break;
+                    case "strategy": config.strategy = value.toUpperCase(Locale.ROOT); break;
+                    case "batch": config.batch = value.toLowerCase(Locale.ROOT); break;
+                    case "seed": config.seed = Integer.parseInt(value); break;
+                    case "width": config.width = Integer.parseInt(value); break;
+                    case "height": config.height = Integer.parseInt(value); break;
+                    case "report": config.report = value; break;
+                    default: throw new IllegalArgumentException("Unknown stress option: " + pair[0]);
+                }
+            }
+            if (config.layers < 1 || config.map < 1)
+                throw new IllegalArgumentException("Need at least one layer and one tile.");
+            /* The report needs two recorded frames, the first one may have no frame time. */
+            if (Math.round(config.duration / STEP) < 2 || config.warmup < 0f)
+                throw new IllegalArgumentException("duration must be at least two frames (" + 2 * STEP + " s) and warmup can't be negative.");
+            return config;
+        }
+
+        @Override
+        public String toString() {
+            return "map=" + map + " layers=" + layers + " density=" + density + " editRate=" + editRate
+                + " duration=" + duration + " warmup=" + warmup + " zoomMin=" + zoomMin + " zoomMax=" + zoomMax
+                + " strategy=" + strategy + " batch=" + batch + " seed=" + seed + " width=" + width + " height=" + height;
+        }
+
+    }
+
+}